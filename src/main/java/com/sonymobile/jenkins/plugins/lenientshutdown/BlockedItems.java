@@ -0,0 +1,169 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+/**
+ * Keeps the queue ids of the items currently blocked by lenient shutdown, globally and per node,
+ * so that reporting how many items are held back does not have to walk the queue.
+ * Items are added and removed as the dispatcher decides about them, and dropped when they
+ * leave the queue or the lenient shutdown that blocked them is cancelled.
+ */
+final class BlockedItems {
+
+    private final Set<Long> global = newIdSet();
+
+    /**
+     * Node name -> ids of the items blocked on that node.
+     */
+    private final Map<String, Set<Long>> nodes = new ConcurrentHashMap<String, Set<Long>>();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    BlockedItems() { }
+
+    /**
+     * Gets the blocked items of the running plugin.
+     * @return the blocked items
+     */
+    private static BlockedItems get() {
+        return PluginImpl.getInstance().getBlockedItems();
+    }
+
+    /**
+     * Records that an item is blocked by global lenient shutdown.
+     * @param id the queue id
+     */
+    static void blocked(long id) {
+        get().global.add(id);
+    }
+
+    /**
+     * Records that an item is no longer blocked by global lenient shutdown.
+     * @param id the queue id
+     */
+    static void admitted(long id) {
+        get().global.remove(id);
+    }
+
+    /**
+     * Records that an item is blocked on a node that is shutting down leniently.
+     * @param nodeName the node name
+     * @param id the queue id
+     */
+    static void blockedOn(String nodeName, long id) {
+        Map<String, Set<Long>> nodes = get().nodes;
+        Set<Long> ids = nodes.get(nodeName);
+        if (ids == null) {
+            ids = newIdSet();
+            Set<Long> existing = nodes.putIfAbsent(nodeName, ids);
+            if (existing != null) {
+                ids = existing;
+            }
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Records that an item is no longer blocked on a node.
+     * @param nodeName the node name
+     * @param id the queue id
+     */
+    static void admittedOn(String nodeName, long id) {
+        Set<Long> ids = get().nodes.get(nodeName);
+        if (ids != null) {
+            ids.remove(id);
+        }
+    }
+
+    /**
+     * Gets the number of items blocked by global lenient shutdown.
+     * @return the number of items
+     */
+    static int getBlockedCount() {
+        return get().global.size();
+    }
+
+    /**
+     * Gets the number of items blocked on argument node.
+     * @param nodeName the node name
+     * @return the number of items
+     */
+    static int getBlockedCount(String nodeName) {
+        Set<Long> ids = get().nodes.get(nodeName);
+        if (ids == null) {
+            return 0;
+        }
+        return ids.size();
+    }
+
+    /**
+     * Forgets the items blocked by global lenient shutdown.
+     */
+    static void clear() {
+        get().global.clear();
+    }
+
+    /**
+     * Forgets the items blocked on argument node.
+     * @param nodeName the node name
+     */
+    static void clear(String nodeName) {
+        get().nodes.remove(nodeName);
+    }
+
+    /**
+     * Creates a concurrent set of queue ids.
+     * @return the set
+     */
+    private static Set<Long> newIdSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    }
+
+    /**
+     * Drops items that have left the queue.
+     */
+    @Extension
+    public static class QueueWatcher extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            BlockedItems blockedItems = get();
+            blockedItems.global.remove(li.getId());
+            for (Set<Long> ids : blockedItems.nodes.values()) {
+                ids.remove(li.getId());
+            }
+        }
+    }
+}
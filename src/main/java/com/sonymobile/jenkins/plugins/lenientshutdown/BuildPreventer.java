@@ -23,10 +23,10 @@
  */
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sonymobile.jenkins.plugins.lenientshutdown.blockcauses.DeadlineBlockage;
 import com.sonymobile.jenkins.plugins.lenientshutdown.blockcauses.GlobalShutdownBlockage;
 import com.sonymobile.jenkins.plugins.lenientshutdown.blockcauses.NodeShutdownBlockage;
 
@@ -54,38 +54,62 @@ public class BuildPreventer extends QueueTaskDispatcher {
      */
     @Override
     public CauseOfBlockage canRun(Queue.Item item) {
+        if (!DrainActivity.isGlobalDraining()) {
+            return null;
+        }
+        long start = System.nanoTime();
         CauseOfBlockage blockage = null; //Allow to run by default
+        DispatchMetrics.Decision decision = DispatchMetrics.Decision.NOT_APPLICABLE;
 
         ShutdownManageLink shutdownManageLink = ShutdownManageLink.getInstance();
         boolean isGoingToShutdown = shutdownManageLink.isGoingToShutdown();
-        ShutdownConfiguration configuration = ShutdownConfiguration.getInstance();
+        ShutdownConfiguration.Snapshot configuration = ShutdownConfiguration.getInstance().getSnapshot();
         boolean isWhitelistedProject = false;
         boolean isWhiteListedUpStreamProject = false;
 
-        if (isGoingToShutdown
-                && QueueUtils.isApplicable(item.task)
-                && !shutdownManageLink.isPermittedQueueId(item.getId())) {
+        boolean isApplicable = isGoingToShutdown && QueueUtils.isApplicable(item.task);
+        if (isApplicable && shutdownManageLink.isPermittedQueueId(item.getId())) {
+            decision = DispatchMetrics.Decision.ALREADY_PERMITTED;
+        } else if (isApplicable) {
             Job project = (Job)item.task;
             isWhitelistedProject = shutdownManageLink.isActiveQueueIds()
                     && configuration.isWhiteListedProject(project.getFullName());
 
-            Set<Long> upstreamQueueIds = QueueUtils.getUpstreamQueueIds(item);
-            boolean isPermittedByUpStream = shutdownManageLink.isAnyPermittedUpstreamProject(upstreamQueueIds);
-            isWhiteListedUpStreamProject = shutdownManageLink.isAnyWhiteListedUpstreamProject(upstreamQueueIds);
+            DispatchCache.ItemDecisions decisions = DispatchCache.forItem(item);
+            boolean isPermittedByUpStream = DownstreamClosure.isReachable(item);
+            if (!isPermittedByUpStream) {
+                long[] upstreamQueueIds = decisions.getUpstreamQueueIds(item);
+                isPermittedByUpStream = shutdownManageLink.isAnyPermittedUpstreamProject(upstreamQueueIds);
+                isWhiteListedUpStreamProject = shutdownManageLink.isAnyWhiteListedUpstreamProject(upstreamQueueIds);
+            }
 
             if (!isPermittedByUpStream && !isWhitelistedProject && !isWhiteListedUpStreamProject) {
                 logger.log(Level.FINE, "Preventing project {0} from running, "
                         + "since lenient shutdown is active", project.getFullName());
                 blockage = new GlobalShutdownBlockage();
+                decision = DispatchMetrics.Decision.BLOCKED;
             } else {
                 if (isPermittedByUpStream) {
                     isWhitelistedProject = false;
+                    decision = DispatchMetrics.Decision.PERMITTED_BY_UPSTREAM;
+                } else {
+                    decision = DispatchMetrics.Decision.WHITE_LISTED;
+                }
+                long deadline = shutdownManageLink.getDrainDeadline();
+                if (deadline > 0 && !fitsBefore(deadline, decisions.getEstimatedDuration(project))) {
+                    logger.log(Level.FINE, "Preventing project {0} from running, "
+                            + "since it would not finish before the lenient shutdown deadline", project.getFullName());
+                    blockage = new DeadlineBlockage(deadline);
+                    decision = DispatchMetrics.Decision.BLOCKED_BY_DEADLINE;
                 }
             }
         }
 
         //Set the project as allowed upstream project if it was not blocked and shutdown enabled:
-        if (blockage == null && isGoingToShutdown) {
+        if (blockage != null) {
+            BlockedItems.blocked(item.getId());
+        } else if (isGoingToShutdown) {
+            BlockedItems.admitted(item.getId());
             if (isWhitelistedProject || isWhiteListedUpStreamProject) {
                 shutdownManageLink.addWhiteListedQueueId(item.getId());
             } else {
@@ -94,9 +118,21 @@ public class BuildPreventer extends QueueTaskDispatcher {
             }
         }
 
+        DispatchMetrics.recordCanRun(System.nanoTime() - start, decision);
         return blockage;
     }
 
+    /**
+     * Checks if a build started now is expected to finish before argument deadline.
+     * A build without an estimate is expected to finish immediately.
+     * @param deadline the deadline in milliseconds since the epoch
+     * @param estimatedDuration the estimated duration in milliseconds, -1 if unknown
+     * @return true if the build is expected to finish in time, otherwise false
+     */
+    static boolean fitsBefore(long deadline, long estimatedDuration) {
+        return System.currentTimeMillis() + Math.max(estimatedDuration, 0) <= deadline;
+    }
+
     /**
      * Handles prevention of builds specific for a node when taking specific nodes offline leniently.
      * @param node the node to check prevention for
@@ -105,32 +141,44 @@ public class BuildPreventer extends QueueTaskDispatcher {
      */
     @Override
     public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!DrainActivity.isAnyNodeDraining()) {
+            return null;
+        }
+        long start = System.nanoTime();
         CauseOfBlockage blockage = null; //Allow to run by default
+        DispatchMetrics.Decision decision = DispatchMetrics.Decision.NOT_APPLICABLE;
 
         PluginImpl plugin = PluginImpl.getInstance();
         String nodeName = node.getNodeName();
         boolean nodeIsGoingToShutdown = plugin.isNodeShuttingDown(nodeName);
 
-        if (nodeIsGoingToShutdown
-                && QueueUtils.isApplicable(item.task)
-                && !plugin.wasAlreadyQueued(item.getId(), nodeName)) {
+        boolean isApplicable = nodeIsGoingToShutdown && QueueUtils.isApplicable(item.task);
+        if (isApplicable && plugin.wasAlreadyQueued(item.getId(), nodeName)) {
+            decision = DispatchMetrics.Decision.ALREADY_PERMITTED;
+        } else if (isApplicable) {
+            DispatchCache.ItemDecisions decisions = DispatchCache.forItem(item);
+            boolean blocked = decisions.canOtherNodeBuild(item, node)
+                    || !plugin.isAnyPermittedUpstreamQueueId(decisions.getUpstreamQueueIds(item), nodeName);
 
-            boolean otherNodeCanBuild = QueueUtils.canOtherNodeBuild(item, node);
-            Set<Long> upstreamQueueIds = QueueUtils.getUpstreamQueueIds(item);
-
-            if (otherNodeCanBuild
-                    || !plugin.isAnyPermittedUpstreamQueueId(upstreamQueueIds, nodeName)) {
+            if (blocked) {
                 logger.log(Level.FINE, "Preventing project {0} from running on node {1}, "
                         + "since lenient shutdown is active", new String[] { item.getDisplayName(), nodeName });
                 blockage = new NodeShutdownBlockage();
+                decision = DispatchMetrics.Decision.BLOCKED;
+            } else {
+                decision = DispatchMetrics.Decision.PERMITTED_BY_UPSTREAM;
             }
         }
 
         //Set the project as allowed upstream project if it was not blocked and node shutdown enabled:
-        if (blockage == null && nodeIsGoingToShutdown) {
+        if (blockage != null) {
+            BlockedItems.blockedOn(nodeName, item.getId());
+        } else if (nodeIsGoingToShutdown) {
+            BlockedItems.admittedOn(nodeName, item.getId());
             plugin.addPermittedUpstreamQueueId(item.getId(), nodeName);
         }
 
+        DispatchMetrics.recordCanTake(System.nanoTime() - start, decision);
         return blockage;
     }
 
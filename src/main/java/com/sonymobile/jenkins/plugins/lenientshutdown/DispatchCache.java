@@ -0,0 +1,199 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+/**
+ * Memoizes the per item work done by {@link BuildPreventer} while the queue is maintained.
+ * The same item is checked against every node during a maintenance pass, so its upstream
+ * queue ids and the nodes able to build it are computed once and reused. Everything is
+ * discarded when the {@link DrainActivity#getEpoch() drain epoch} advances or when items
+ * enter or leave the queue. Which ids are permitted changes while draining, so that is
+ * always checked live and not cached here.
+ */
+final class DispatchCache {
+
+    /**
+     * How many nodes able to build an item to look for. Two are enough to tell
+     * whether any node other than a given one can build it.
+     */
+    private static final int ABLE_NODES_LIMIT = 2;
+
+    private final AtomicLong queueVersion = new AtomicLong();
+
+    private volatile Generation current = new Generation(-1, -1);
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    DispatchCache() { }
+
+    /**
+     * Gets the cache of the running plugin.
+     * @return the cache
+     */
+    private static DispatchCache get() {
+        return PluginImpl.getInstance().getDispatchCache();
+    }
+
+    /**
+     * Gets the cached decisions for a queue item, starting a new generation if needed.
+     * @param item the queue item
+     * @return the cached decisions for the item
+     */
+    static ItemDecisions forItem(Queue.Item item) {
+        DispatchCache cache = get();
+        long epoch = DrainActivity.getEpoch();
+        long queueVersion = cache.queueVersion.get();
+        Generation generation = cache.current;
+        if (generation.epoch != epoch || generation.queueVersion != queueVersion) {
+            generation = new Generation(epoch, queueVersion);
+            cache.current = generation;
+        }
+        ItemDecisions decisions = generation.items.get(item.getId());
+        if (decisions == null) {
+            decisions = new ItemDecisions();
+            ItemDecisions existing = generation.items.putIfAbsent(item.getId(), decisions);
+            if (existing != null) {
+                decisions = existing;
+            }
+        }
+        return decisions;
+    }
+
+    /**
+     * Discards all cached decisions.
+     */
+    static void clear() {
+        get().queueVersion.incrementAndGet();
+    }
+
+    /**
+     * The decisions cached for one epoch and queue version.
+     */
+    private static final class Generation {
+        private final long epoch;
+        private final long queueVersion;
+        private final Map<Long, ItemDecisions> items = new ConcurrentHashMap<Long, ItemDecisions>();
+
+        /**
+         * Constructor.
+         * @param epoch the drain epoch
+         * @param queueVersion the queue version
+         */
+        private Generation(long epoch, long queueVersion) {
+            this.epoch = epoch;
+            this.queueVersion = queueVersion;
+        }
+    }
+
+    /**
+     * The cached results for a single queue item.
+     * Values may be computed more than once by concurrent callers, which is harmless.
+     */
+    static final class ItemDecisions {
+        private volatile long[] upstreamQueueIds;
+        private volatile List<Node> ableNodes;
+        private volatile Long estimatedDuration;
+
+        /**
+         * Gets the queue ids of the upstream builds of the item.
+         * @param item the queue item these decisions belong to
+         * @return array of upstream queue ids
+         * @see QueueUtils#getUpstreamQueueIds(Queue.Item)
+         */
+        long[] getUpstreamQueueIds(Queue.Item item) {
+            long[] ids = upstreamQueueIds;
+            if (ids == null) {
+                ids = QueueUtils.getUpstreamQueueIdArray(item);
+                upstreamQueueIds = ids;
+            }
+            return ids;
+        }
+
+        /**
+         * Checks if an online node other than the argument node can build the item.
+         * @param item the buildable item these decisions belong to
+         * @param node the node to exclude
+         * @return true if another node can build the item, otherwise false
+         * @see QueueUtils#canOtherNodeBuild(Queue.Item, Node)
+         */
+        boolean canOtherNodeBuild(Queue.BuildableItem item, Node node) {
+            List<Node> nodes = ableNodes;
+            if (nodes == null) {
+                nodes = QueueUtils.getNodesAbleToBuild(item, ABLE_NODES_LIMIT);
+                ableNodes = nodes;
+            }
+            for (Node ableNode : nodes) {
+                if (!ableNode.equals(node)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gets the estimated duration of a build of the item.
+         * @param job the job of the queue item these decisions belong to
+         * @return the estimated duration in milliseconds, -1 if unknown
+         * @see Job#getEstimatedDuration()
+         */
+        long getEstimatedDuration(Job<?, ?> job) {
+            Long duration = estimatedDuration;
+            if (duration == null) {
+                duration = job.getEstimatedDuration();
+                estimatedDuration = duration;
+            }
+            return duration;
+        }
+    }
+
+    /**
+     * Starts a new generation when items enter or leave the queue.
+     */
+    @Extension
+    public static class QueueWatcher extends QueueListener {
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            clear();
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            clear();
+        }
+    }
+}
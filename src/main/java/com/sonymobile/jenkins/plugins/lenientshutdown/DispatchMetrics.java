@@ -0,0 +1,265 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Records how long the dispatcher checks and drain analyses take and which decisions
+ * the dispatcher makes. Recording is lock-free and does not allocate, so it can stay
+ * enabled on the queue maintenance thread. Nothing is recorded while nothing is draining,
+ * since the dispatcher returns before reaching the recorder then.
+ */
+final class DispatchMetrics {
+
+    /**
+     * The outcome of a dispatcher check.
+     */
+    enum Decision {
+        /**
+         * No lenient shutdown applies to the item.
+         */
+        NOT_APPLICABLE,
+        /**
+         * The item was already permitted when lenient shutdown was activated or earlier.
+         */
+        ALREADY_PERMITTED,
+        /**
+         * The item is permitted by a permitted upstream build.
+         */
+        PERMITTED_BY_UPSTREAM,
+        /**
+         * The item is permitted as a white listed project or downstream of one.
+         */
+        WHITE_LISTED,
+        /**
+         * The item is blocked.
+         */
+        BLOCKED,
+        /**
+         * The item would otherwise be permitted, but is not expected to finish before the drain deadline.
+         */
+        BLOCKED_BY_DEADLINE
+    }
+
+    private final LatencyHistogram canRun = new LatencyHistogram();
+    private final LatencyHistogram canTake = new LatencyHistogram();
+    private final LatencyHistogram globalAnalysis = new LatencyHistogram();
+    private final LatencyHistogram nodeAnalysis = new LatencyHistogram();
+
+    private final LongAdder[] canRunDecisions = newCounters();
+    private final LongAdder[] canTakeDecisions = newCounters();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    DispatchMetrics() { }
+
+    /**
+     * Gets the metrics of the running plugin.
+     * @return the metrics
+     */
+    private static DispatchMetrics get() {
+        return PluginImpl.getInstance().getDispatchMetrics();
+    }
+
+    /**
+     * Records a global dispatcher check.
+     * @param nanos how long the check took
+     * @param decision the outcome
+     */
+    static void recordCanRun(long nanos, Decision decision) {
+        DispatchMetrics metrics = get();
+        metrics.canRun.record(nanos);
+        metrics.canRunDecisions[decision.ordinal()].increment();
+    }
+
+    /**
+     * Records a node dispatcher check.
+     * @param nanos how long the check took
+     * @param decision the outcome
+     */
+    static void recordCanTake(long nanos, Decision decision) {
+        DispatchMetrics metrics = get();
+        metrics.canTake.record(nanos);
+        metrics.canTakeDecisions[decision.ordinal()].increment();
+    }
+
+    /**
+     * Records the analysis done when global lenient shutdown is activated.
+     * @param nanos how long the analysis took
+     */
+    static void recordGlobalAnalysis(long nanos) {
+        get().globalAnalysis.record(nanos);
+    }
+
+    /**
+     * Records a batched analysis of nodes taken offline leniently.
+     * @param nanos how long the analysis took
+     */
+    static void recordNodeAnalysis(long nanos) {
+        get().nodeAnalysis.record(nanos);
+    }
+
+    /**
+     * Gets the recorded metrics, together with the current sizes of the id sets.
+     * @return the metrics as JSON
+     */
+    static JSONObject toJson() {
+        DispatchMetrics recorded = get();
+        JSONObject canRun = recorded.canRun.toJson();
+        canRun.put("decisions", toJson(recorded.canRunDecisions));
+        JSONObject canTake = recorded.canTake.toJson();
+        canTake.put("decisions", toJson(recorded.canTakeDecisions));
+
+        ShutdownManageLink shutdownManageLink = ShutdownManageLink.getInstance();
+        JSONObject sizes = new JSONObject();
+        sizes.put("permittedQueueIds", shutdownManageLink.getPermittedQueueIdCount());
+        sizes.put("activeQueueIds", shutdownManageLink.getActiveQueueIdCount());
+        sizes.put("whiteListedQueueIds", shutdownManageLink.getWhiteListedQueueIdCount());
+        sizes.put("nodePermittedQueueIds", PluginImpl.getInstance().getPermittedQueuedItemIdCount());
+        sizes.put("pendingNodeAnalyses", DrainAnalyzer.getQueueDepth());
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("drainState", shutdownManageLink.getDrainStatus().getState().name());
+        metrics.put("epoch", shutdownManageLink.getDrainStatus().getEpoch());
+        metrics.put("canRun", canRun);
+        metrics.put("canTake", canTake);
+        metrics.put("globalAnalysis", recorded.globalAnalysis.toJson());
+        metrics.put("nodeAnalysis", recorded.nodeAnalysis.toJson());
+        metrics.put("sizes", sizes);
+        return metrics;
+    }
+
+    /**
+     * Creates a counter per decision.
+     * @return the counters, indexed by ordinal
+     */
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[Decision.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Converts decision counters to JSON.
+     * @param counters the counters, indexed by ordinal
+     * @return decision name -> count
+     */
+    private static JSONObject toJson(LongAdder[] counters) {
+        JSONObject json = new JSONObject();
+        for (Decision decision : Decision.values()) {
+            json.put(decision.name(), counters[decision.ordinal()].sum());
+        }
+        return json;
+    }
+
+    /**
+     * A histogram of durations with power of two nanosecond buckets.
+     */
+    static final class LatencyHistogram {
+
+        /**
+         * Bucket i counts durations below 2^i nanoseconds; the last one also counts anything longer.
+         */
+        private static final int BUCKETS = 40;
+
+        private static final double P50 = 0.5;
+        private static final double P99 = 0.99;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records a duration.
+         * @param nanos the duration
+         */
+        void record(long nanos) {
+            int bucket = Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls in.
+         * @param counts the bucket counts
+         * @param total the sum of the counts
+         * @param fraction the percentile, between 0 and 1
+         * @return the estimated duration in nanoseconds
+         */
+        private static long percentile(long[] counts, long total, double fraction) {
+            long threshold = (long)Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+
+        /**
+         * Converts the histogram to JSON, listing only non empty buckets.
+         * @return the histogram as JSON
+         */
+        JSONObject toJson() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            JSONArray nonEmpty = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+                if (counts[i] > 0) {
+                    JSONObject bucket = new JSONObject();
+                    bucket.put("belowNanos", 1L << i);
+                    bucket.put("count", counts[i]);
+                    nonEmpty.add(bucket);
+                }
+            }
+            JSONObject json = new JSONObject();
+            json.put("count", count.sum());
+            json.put("totalNanos", totalNanos.sum());
+            json.put("maxNanos", maxNanos.get());
+            if (total > 0) {
+                json.put("p50Nanos", percentile(counts, total, P50));
+                json.put("p99Nanos", percentile(counts, total, P99));
+            }
+            json.put("buckets", nonEmpty);
+            return json;
+        }
+    }
+}
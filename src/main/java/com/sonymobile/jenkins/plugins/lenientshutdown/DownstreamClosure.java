@@ -0,0 +1,130 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.model.Cause;
+import hudson.model.Queue;
+import hudson.model.Run;
+
+/**
+ * The builds descending from the builds that were running or permitted when lenient
+ * shutdown was activated.
+ * <p>
+ * When enabled in {@link ShutdownConfiguration}, a queued item that was triggered by one
+ * of these builds is permitted by a hash lookup of its upstream build, without resolving
+ * the queue ids of its upstream builds. The closure is seeded with the running builds when
+ * lenient shutdown is activated and grows as permitted builds start, so it follows the
+ * lineage of the builds and never has to be computed again.
+ */
+final class DownstreamClosure {
+
+    /**
+     * External ids of the builds in the closure, or null if there is none.
+     */
+    private volatile Set<String> builds;
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    DownstreamClosure() { }
+
+    /**
+     * Gets the closure of the running plugin.
+     * @return the closure
+     */
+    private static DownstreamClosure get() {
+        return PluginImpl.getInstance().getDownstreamClosure();
+    }
+
+    /**
+     * Starts the closure from the running builds, which are all permitted.
+     */
+    static void activate() {
+        Set<String> seeds = ConcurrentHashMap.newKeySet();
+        for (Run<?, ?> run : RunningWork.getRunningBuilds()) {
+            seeds.add(run.getExternalizableId());
+        }
+        get().builds = seeds;
+    }
+
+    /**
+     * Adds a started build to the closure if it was permitted.
+     * @param run the started build
+     */
+    static void started(Run<?, ?> run) {
+        Set<String> current = get().builds;
+        if (current != null && ShutdownManageLink.getInstance().isPermittedQueueId(run.getQueueId())) {
+            current.add(run.getExternalizableId());
+        }
+    }
+
+    /**
+     * Renames the builds of a renamed or moved job, or of the jobs in a renamed or moved folder.
+     * @param oldFullName the old full name of the item
+     * @param newFullName the new full name of the item
+     */
+    static void locationChanged(String oldFullName, String newFullName) {
+        Set<String> current = get().builds;
+        if (current == null) {
+            return;
+        }
+        for (String buildId : current) {
+            String movedId = UpstreamRunIndex.getMovedBuildId(buildId, oldFullName, newFullName);
+            if (movedId != null) {
+                current.add(movedId);
+                current.remove(buildId);
+            }
+        }
+    }
+
+    /**
+     * Drops the closure.
+     */
+    static void clear() {
+        get().builds = null;
+    }
+
+    /**
+     * Checks if argument item was triggered by a build in the closure.
+     * A negative answer means the item has to be checked by its upstream queue ids.
+     * @param item the queue item
+     * @return true if the item is permitted by the closure, otherwise false
+     */
+    static boolean isReachable(Queue.Item item) {
+        Set<String> current = get().builds;
+        if (current == null) {
+            return false;
+        }
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause
+                    && current.contains(QueueUtils.getUpstreamBuildId((Cause.UpstreamCause)cause))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
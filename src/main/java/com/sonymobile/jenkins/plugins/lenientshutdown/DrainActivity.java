@@ -0,0 +1,127 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Summary of whether any lenient shutdown is in progress.
+ * The flags are published through a single volatile field so that the queue
+ * dispatcher can bail out without any lookups while nothing is draining.
+ * An epoch is advanced on every change that may alter a dispatcher decision,
+ * so that cached decisions can be invalidated cheaply.
+ */
+final class DrainActivity {
+
+    private static final int GLOBAL = 1;
+    private static final int NODES = 2;
+
+    private volatile int flags;
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    DrainActivity() { }
+
+    /**
+     * Gets the drain activity of the running plugin.
+     * @return the drain activity
+     */
+    private static DrainActivity get() {
+        return PluginImpl.getInstance().getDrainActivity();
+    }
+
+    /**
+     * Checks if neither a global nor any node lenient shutdown is active.
+     * @return true if nothing is draining, otherwise false
+     */
+    static boolean isIdle() {
+        return get().flags == 0;
+    }
+
+    /**
+     * Checks if global lenient shutdown mode is active.
+     * @return true if Jenkins is draining, otherwise false
+     */
+    static boolean isGlobalDraining() {
+        return (get().flags & GLOBAL) != 0;
+    }
+
+    /**
+     * Checks if at least one node is being taken offline leniently.
+     * @return true if any node is draining, otherwise false
+     */
+    static boolean isAnyNodeDraining() {
+        return (get().flags & NODES) != 0;
+    }
+
+    /**
+     * Gets the current drain state epoch.
+     * @return the epoch
+     */
+    static long getEpoch() {
+        return get().epoch.get();
+    }
+
+    /**
+     * Advances the epoch, invalidating any decisions cached for the previous one.
+     * @return the new epoch
+     */
+    static long advanceEpoch() {
+        return get().epoch.incrementAndGet();
+    }
+
+    /**
+     * Publishes the global lenient shutdown state.
+     * @param draining true if global lenient shutdown mode is active
+     */
+    static void setGlobalDraining(boolean draining) {
+        get().setFlag(GLOBAL, draining);
+    }
+
+    /**
+     * Publishes whether any node is being taken offline leniently.
+     * @param draining true if at least one node is draining
+     */
+    static void setAnyNodeDraining(boolean draining) {
+        get().setFlag(NODES, draining);
+    }
+
+    /**
+     * Sets or clears a flag and advances the epoch.
+     * @param bit the flag to change
+     * @param set true to set the flag, false to clear it
+     */
+    private synchronized void setFlag(int bit, boolean set) {
+        if (set) {
+            flags = flags | bit;
+        } else {
+            flags = flags & ~bit;
+        }
+        epoch.incrementAndGet();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+/**
+ * Runs the analysis of which queued items to permit on nodes set offline leniently.
+ * <p>
+ * All analyses share one bounded pool of named daemon threads. Nodes requested while an
+ * analysis is already waiting to run are added to it, so at most one batch is ever waiting
+ * and a burst of requests for many nodes results in a few batched runs that walk the queue
+ * once per batch.
+ */
+final class DrainAnalyzer {
+
+    private static final Logger logger = Logger.getLogger(DrainAnalyzer.class.getName());
+
+    /**
+     * Maximum number of analysis threads.
+     */
+    private static final int THREADS = SystemProperties.getInteger(DrainAnalyzer.class.getName() + ".threads", 1);
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private static final Object LOCK = new Object();
+
+    //Guarded by LOCK:
+    private static ThreadPoolExecutor executor;
+    private static Set<String> pendingNodeNames = new LinkedHashSet<String>();
+    private static boolean batchScheduled;
+
+    /**
+     * Hiding utility class constructor.
+     */
+    private DrainAnalyzer() { }
+
+    /**
+     * Requests an analysis of the queued items permitted on argument node.
+     * @param nodeName the node shutting down leniently
+     */
+    static void analyze(String nodeName) {
+        ThreadPoolExecutor service;
+        synchronized (LOCK) {
+            pendingNodeNames.add(nodeName);
+            if (batchScheduled) {
+                return;
+            }
+            batchScheduled = true;
+            service = getExecutor();
+        }
+        service.execute(new Runnable() {
+            @Override
+            public void run() {
+                runBatch();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of analyses waiting to run, for monitoring.
+     * @return number of pending node analyses
+     */
+    static int getQueueDepth() {
+        synchronized (LOCK) {
+            int depth = pendingNodeNames.size();
+            if (executor != null) {
+                depth += executor.getQueue().size();
+            }
+            return depth;
+        }
+    }
+
+    /**
+     * Stops the analysis threads, letting a running batch finish.
+     */
+    static void shutdown() {
+        ThreadPoolExecutor service;
+        synchronized (LOCK) {
+            service = executor;
+            executor = null;
+            pendingNodeNames = new LinkedHashSet<String>();
+            batchScheduled = false;
+        }
+        if (service == null) {
+            return;
+        }
+        service.shutdown();
+        try {
+            if (!service.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "Lenient shutdown analysis did not finish in time; interrupting");
+                service.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            service.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the executor, creating it on first use. Called with LOCK held.
+     * @return the executor
+     */
+    private static ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Lenient shutdown analysis"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Analyzes all nodes requested so far.
+     */
+    private static void runBatch() {
+        Set<String> nodeNames;
+        synchronized (LOCK) {
+            nodeNames = pendingNodeNames;
+            pendingNodeNames = new LinkedHashSet<String>();
+            batchScheduled = false;
+        }
+        if (nodeNames.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        //Batches mix requests from several users, so look at the whole queue
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            PluginImpl plugin = PluginImpl.getInstance();
+            Map<String, Set<Long>> permittedIds = QueueUtils.getPermittedQueueItemIds(nodeNames);
+            for (String nodeName : nodeNames) {
+                Set<Long> nodePermittedIds = new HashSet<Long>(QueueUtils.getRunninProjectsQueueIDs(nodeName));
+                if (permittedIds.containsKey(nodeName)) {
+                    nodePermittedIds.addAll(permittedIds.get(nodeName));
+                }
+                //Nodes toggled back online meanwhile are skipped, so they keep no permitted ids
+                if (plugin.replacePermittedQueuedItemIds(nodeName, nodePermittedIds)
+                        && permittedIds.containsKey(nodeName)) {
+                    DrainEstimator.queued(nodeName, permittedIds.get(nodeName));
+                }
+            }
+            DispatchMetrics.recordNodeAnalysis(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to analyze queue for nodes " + nodeNames, e);
+        }
+    }
+}
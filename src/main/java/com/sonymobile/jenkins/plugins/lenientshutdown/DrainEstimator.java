@@ -0,0 +1,489 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.OneOffExecutor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Estimates when lenient shutdown will be done, for the whole controller and for each node
+ * shutting down leniently.
+ * <p>
+ * The estimate combines the expected end of every running build, from its estimated remaining
+ * time, with the estimated durations of the permitted queued items and the longest chains of
+ * downstream projects that both may still trigger. Like {@link DrainSorter}'s prediction, the
+ * queued items are assigned in queue order to the executor that becomes free first, so they
+ * wait for the running builds when all executors are busy. Globally permitted items are built on
+ * the nodes that are not shutting down, items permitted on a node on that node.
+ * The estimate is kept up to date as builds start and complete and as permitted items are
+ * analyzed, so reading it only takes the current time into account. While nothing is draining
+ * builds are not followed; the running builds are picked up from the executors again when a
+ * lenient shutdown starts.
+ */
+final class DrainEstimator {
+
+    /**
+     * Queue id -> estimate of a running build.
+     */
+    private final Map<Long, RunningEstimate> runningBuilds = new ConcurrentHashMap<Long, RunningEstimate>();
+
+    /**
+     * Queue id -> estimate of a globally permitted queued item.
+     */
+    private final Map<Long, QueuedEstimate> queuedItems = new ConcurrentHashMap<Long, QueuedEstimate>();
+
+    /**
+     * Node name -> queue id -> estimated duration of an item permitted to build on that node.
+     */
+    private final Map<String, Map<Long, Long>> nodeQueuedItems = new ConcurrentHashMap<String, Map<Long, Long>>();
+
+    private volatile boolean seeded;
+
+    private volatile Totals totals = new Totals();
+
+    private final Object lock = new Object();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    DrainEstimator() { }
+
+    /**
+     * Gets the estimator of the running plugin.
+     * @return the estimator
+     */
+    private static DrainEstimator get() {
+        return PluginImpl.getInstance().getDrainEstimator();
+    }
+
+    /**
+     * Gets when global lenient shutdown is estimated to be done.
+     * @return the time in milliseconds since the epoch, or 0 if global lenient shutdown is not active,
+     *         nothing is left to wait for or there are no executors for the permitted items
+     */
+    static long getCompletionTime() {
+        if (!DrainActivity.isGlobalDraining()) {
+            return 0;
+        }
+        DrainEstimator estimator = get();
+        estimator.seedIfNeeded();
+        long completion = 0;
+        long globalEnd = estimator.totals.globalEnd;
+        if (globalEnd > 0) {
+            completion = Math.max(System.currentTimeMillis(), globalEnd);
+        }
+        return Math.max(completion, DrainSorter.getPredictedCompletionTime());
+    }
+
+    /**
+     * Gets when argument node is estimated to be done with its builds.
+     * @param nodeName the node name
+     * @return the time in milliseconds since the epoch, or 0 if the node is not shutting down leniently,
+     *         nothing is left to wait for or the node has no executors for the permitted items
+     */
+    static long getCompletionTime(String nodeName) {
+        if (!DrainActivity.isAnyNodeDraining() || !PluginImpl.getInstance().isNodeShuttingDown(nodeName)) {
+            return 0;
+        }
+        DrainEstimator estimator = get();
+        estimator.seedIfNeeded();
+        Long nodeEnd = estimator.totals.nodeEnds.get(nodeName);
+        if (nodeEnd == null || nodeEnd == 0) {
+            return 0;
+        }
+        return Math.max(System.currentTimeMillis(), nodeEnd);
+    }
+
+    /**
+     * Records a started build.
+     * @param run the build
+     */
+    static void started(Run<?, ?> run) {
+        DrainEstimator estimator = get();
+        if (DrainActivity.isIdle()) {
+            estimator.seeded = false;
+            return;
+        }
+        Executor executor = run.getExecutor();
+        if (executor == null) {
+            return;
+        }
+        RunningEstimate estimate = estimate(run, executor, DrainSorter.getPaths());
+        synchronized (estimator.lock) {
+            estimator.queuedItems.remove(run.getQueueId());
+            for (Map<Long, Long> nodeQueued : estimator.nodeQueuedItems.values()) {
+                nodeQueued.remove(run.getQueueId());
+            }
+            estimator.runningBuilds.put(run.getQueueId(), estimate);
+            estimator.recompute();
+        }
+    }
+
+    /**
+     * Forgets a completed build.
+     * @param run the build
+     */
+    static void completed(Run<?, ?> run) {
+        DrainEstimator estimator = get();
+        if (estimator.runningBuilds.remove(run.getQueueId()) != null) {
+            synchronized (estimator.lock) {
+                estimator.recompute();
+            }
+        }
+    }
+
+    /**
+     * Records the queued items permitted when global lenient shutdown was activated.
+     * @param queueIds the queue ids of the permitted items
+     */
+    static void queued(Set<Long> queueIds) {
+        DrainEstimator estimator = get();
+        DrainSorter.CriticalPaths paths = DrainSorter.getPaths();
+        Map<Long, QueuedEstimate> estimates = new HashMap<Long, QueuedEstimate>();
+        for (Queue.Item item : getQueuedItems(queueIds)) {
+            estimates.put(item.getId(), new QueuedEstimate(paths.durationOf(item.task), paths.chainOf(item.task)));
+        }
+        synchronized (estimator.lock) {
+            estimator.queuedItems.clear();
+            estimator.queuedItems.putAll(estimates);
+            estimator.recompute();
+        }
+        estimator.seedIfNeeded();
+    }
+
+    /**
+     * Records the queued items permitted to build on a node shutting down leniently.
+     * @param nodeName the node name
+     * @param queueIds the queue ids of the permitted items
+     */
+    static void queued(String nodeName, Set<Long> queueIds) {
+        DrainEstimator estimator = get();
+        DrainSorter.CriticalPaths paths = DrainSorter.getPaths();
+        Map<Long, Long> durations = new ConcurrentHashMap<Long, Long>();
+        for (Queue.Item item : getQueuedItems(queueIds)) {
+            durations.put(item.getId(), paths.durationOf(item.task));
+        }
+        synchronized (estimator.lock) {
+            estimator.nodeQueuedItems.put(nodeName, durations);
+            estimator.recompute();
+        }
+        estimator.seedIfNeeded();
+    }
+
+    /**
+     * Forgets the queued items permitted by global lenient shutdown.
+     */
+    static void clear() {
+        DrainEstimator estimator = get();
+        synchronized (estimator.lock) {
+            estimator.queuedItems.clear();
+            estimator.recompute();
+        }
+    }
+
+    /**
+     * Forgets the queued items permitted on a node.
+     * @param nodeName the node name
+     */
+    static void clear(String nodeName) {
+        DrainEstimator estimator = get();
+        synchronized (estimator.lock) {
+            estimator.nodeQueuedItems.remove(nodeName);
+            estimator.recompute();
+        }
+    }
+
+    /**
+     * Gets the tracked queue items with argument ids.
+     * @param queueIds the queue ids
+     * @return the queue items
+     */
+    private static List<Queue.Item> getQueuedItems(Set<Long> queueIds) {
+        List<Queue.Item> items = new ArrayList<Queue.Item>();
+        if (queueIds.isEmpty()) {
+            return items;
+        }
+        for (QueueTracker.TrackedItem tracked : QueueTracker.getItems()) {
+            if (queueIds.contains(tracked.getId())) {
+                items.add(tracked.getItem());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Records the running builds when the estimator is first used during a lenient shutdown.
+     */
+    private void seedIfNeeded() {
+        if (seeded) {
+            return;
+        }
+        DrainSorter.CriticalPaths paths = DrainSorter.getPaths();
+        Map<Long, RunningEstimate> estimates = new HashMap<Long, RunningEstimate>();
+        List<Computer> computers = new ArrayList<Computer>();
+        Collections.addAll(computers, Jenkins.get().getComputers());
+        for (Computer computer : computers) {
+            List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor : executors) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof Run) {
+                    Run<?, ?> run = (Run<?, ?>)executable;
+                    estimates.put(run.getQueueId(), estimate(run, executor, paths));
+                }
+            }
+        }
+        synchronized (lock) {
+            if (seeded) {
+                return;
+            }
+            runningBuilds.clear();
+            runningBuilds.putAll(estimates);
+            seeded = true;
+            recompute();
+        }
+    }
+
+    /**
+     * Estimates when a running build and its longest chain of downstream builds end.
+     * @param run the build
+     * @param executor the executor running the build
+     * @param paths the chain lengths
+     * @return the estimate
+     */
+    private static RunningEstimate estimate(Run<?, ?> run, Executor executor, DrainSorter.CriticalPaths paths) {
+        long end = System.currentTimeMillis() + Math.max(executor.getEstimatedRemainingTimeMillis(), 0);
+        long chainEnd = end + paths.downstreamOf(run.getParent());
+        return new RunningEstimate(executor.getOwner().getName(), !(executor instanceof OneOffExecutor),
+                end, chainEnd);
+    }
+
+    /**
+     * Recomputes and publishes the totals. Called with lock held.
+     */
+    private void recompute() {
+        long now = System.currentTimeMillis();
+        Jenkins jenkins = Jenkins.get();
+        Set<String> drainingNodes = PluginImpl.getInstance().getShuttingDownNodeNames();
+        Map<String, List<RunningEstimate>> nodeRunning = new HashMap<String, List<RunningEstimate>>();
+        long runningEnd = now;
+        for (RunningEstimate estimate : runningBuilds.values()) {
+            runningEnd = Math.max(runningEnd, estimate.chainEnd);
+            List<RunningEstimate> running = nodeRunning.get(estimate.nodeName);
+            if (running == null) {
+                running = new ArrayList<RunningEstimate>();
+                nodeRunning.put(estimate.nodeName, running);
+            }
+            running.add(estimate);
+        }
+        Totals next = new Totals();
+        if (!runningBuilds.isEmpty() || !queuedItems.isEmpty()) {
+            PriorityQueue<Long> freeAt = new PriorityQueue<Long>();
+            for (Computer computer : jenkins.getComputers()) {
+                if (DrainSorter.isAvailable(computer, drainingNodes)) {
+                    addExecutors(freeAt, computer, nodeRunning.get(computer.getName()), now);
+                }
+            }
+            List<QueuedEstimate> queued = inQueueOrder(queuedItems);
+            long[] durations = new long[queued.size()];
+            long[] chains = new long[queued.size()];
+            for (int i = 0; i < durations.length; i++) {
+                durations[i] = queued.get(i).duration;
+                chains[i] = queued.get(i).chain;
+            }
+            next.globalEnd = DrainSorter.schedule(freeAt, runningEnd, durations, chains);
+        }
+        Set<String> nodeNames = new HashSet<String>(nodeRunning.keySet());
+        nodeNames.addAll(nodeQueuedItems.keySet());
+        for (String nodeName : nodeNames) {
+            List<RunningEstimate> running = nodeRunning.get(nodeName);
+            long nodeEnd = now;
+            if (running != null) {
+                for (RunningEstimate estimate : running) {
+                    nodeEnd = Math.max(nodeEnd, estimate.end);
+                }
+            }
+            long[] durations = new long[0];
+            Map<Long, Long> nodeQueued = nodeQueuedItems.get(nodeName);
+            if (running == null && (nodeQueued == null || nodeQueued.isEmpty())) {
+                continue;
+            }
+            if (nodeQueued != null) {
+                List<Long> queued = inQueueOrder(nodeQueued);
+                durations = new long[queued.size()];
+                for (int i = 0; i < durations.length; i++) {
+                    durations[i] = queued.get(i);
+                }
+            }
+            PriorityQueue<Long> freeAt = new PriorityQueue<Long>();
+            Computer computer = jenkins.getComputer(nodeName);
+            if (computer != null && computer.isOnline()) {
+                addExecutors(freeAt, computer, running, now);
+            }
+            //Only the node's own builds are waited for, their downstream builds may run elsewhere
+            next.nodeEnds.put(nodeName, DrainSorter.schedule(freeAt, nodeEnd, durations, durations));
+        }
+        totals = next;
+    }
+
+    /**
+     * Adds when each executor of argument computer becomes free: at the expected end of the build
+     * it runs, or now if it is idle.
+     * @param freeAt the times to add to
+     * @param computer the computer
+     * @param running the builds running on the computer, may be null
+     * @param now the current time
+     */
+    private static void addExecutors(PriorityQueue<Long> freeAt, Computer computer, List<RunningEstimate> running,
+                                     long now) {
+        int idle = computer.getNumExecutors();
+        if (running != null) {
+            for (RunningEstimate estimate : running) {
+                if (estimate.onExecutor) {
+                    freeAt.add(estimate.end);
+                    idle--;
+                }
+            }
+        }
+        while (idle > 0) {
+            freeAt.add(now);
+            idle--;
+        }
+    }
+
+    /**
+     * Gets the values of argument map ordered by their queue id, which is the order the items
+     * were queued in.
+     * @param <V> the value type
+     * @param byQueueId the values by queue id
+     * @return the values
+     */
+    private static <V> List<V> inQueueOrder(Map<Long, V> byQueueId) {
+        List<Long> ids = new ArrayList<Long>(byQueueId.keySet());
+        Collections.sort(ids);
+        List<V> values = new ArrayList<V>(ids.size());
+        for (Long id : ids) {
+            V value = byQueueId.get(id);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The expected end of a running build.
+     */
+    private static final class RunningEstimate {
+        private final String nodeName;
+        private final boolean onExecutor;
+        private final long end;
+        private final long chainEnd;
+
+        /**
+         * Constructor.
+         * @param nodeName the node the build runs on
+         * @param onExecutor true if the build occupies one of the node's executors, false if it runs
+         *                   on a one-off executor
+         * @param end when the build is expected to end
+         * @param chainEnd when the longest chain of downstream builds is expected to end
+         */
+        private RunningEstimate(String nodeName, boolean onExecutor, long end, long chainEnd) {
+            this.nodeName = nodeName;
+            this.onExecutor = onExecutor;
+            this.end = end;
+            this.chainEnd = chainEnd;
+        }
+    }
+
+    /**
+     * The estimate of a permitted queued item.
+     */
+    private static final class QueuedEstimate {
+        private final long duration;
+        private final long chain;
+
+        /**
+         * Constructor.
+         * @param duration the estimated duration of the item
+         * @param chain the estimated length of the chain the item starts
+         */
+        private QueuedEstimate(long duration, long chain) {
+            this.duration = duration;
+            this.chain = chain;
+        }
+    }
+
+    /**
+     * The aggregated estimates, replaced as a whole after every change.
+     */
+    private static final class Totals {
+        /**
+         * When global lenient shutdown is done, 0 if nothing is left or it cannot be estimated.
+         */
+        private long globalEnd;
+        /**
+         * Node name -> when the node is done, 0 if it cannot be estimated.
+         */
+        private final Map<String, Long> nodeEnds = new HashMap<String, Long>();
+    }
+
+    /**
+     * Forgets permitted items that are cancelled.
+     */
+    @Extension
+    public static class QueueWatcher extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled() && !DrainActivity.isIdle()) {
+                DrainEstimator estimator = get();
+                synchronized (estimator.lock) {
+                    estimator.queuedItems.remove(li.getId());
+                    for (Map<Long, Long> nodeQueued : estimator.nodeQueuedItems.values()) {
+                        nodeQueued.remove(li.getId());
+                    }
+                    estimator.recompute();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.DependencyGraph;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueSorter;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Orders the buildable items while global lenient shutdown is active, so that the drain
+ * finishes as early as possible, and predicts when it will finish.
+ * <p>
+ * Items are ordered by the estimated length of the chain they start, their own estimated
+ * duration plus the longest chain of downstream projects, longest first, since those
+ * chains decide when the drain is done. Items with equally long chains are ordered shortest
+ * job first. The ordering is only applied when {@link ShutdownConfiguration#isLongestChainFirst()}
+ * is enabled; otherwise the sorter only passes the items on.
+ * <p>
+ * The sorter wraps the {@link QueueSorter} that was installed when lenient shutdown was
+ * activated, which still orders the items first. When lenient shutdown is cancelled the wrapped
+ * sorter is installed again, unless someone else installed a sorter meanwhile, which is then
+ * left in place.
+ * <p>
+ * The chain lengths are kept between orderings until a build completes or the dependency graph
+ * is rebuilt. Sorting runs with the queue lock held, so it only uses chain lengths that are
+ * already known and neither loads builds nor waits for a lock; the others are computed on the
+ * {@link Timer} pool, after which the queue is sorted again. The prediction is also computed
+ * there, when the order of the items changes or builds start and complete.
+ */
+final class DrainSorter extends QueueSorter {
+
+    private static final Logger logger = Logger.getLogger(DrainSorter.class.getName());
+
+    private final QueueSorter delegate;
+
+    /**
+     * Constructor.
+     * @param delegate the sorter to wrap, may be null
+     */
+    private DrainSorter(QueueSorter delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Gets the order and prediction of the running plugin.
+     * @return the state
+     */
+    private static State getState() {
+        return PluginImpl.getInstance().getDrainSorterState();
+    }
+
+    /**
+     * Installs the sorter when global lenient shutdown becomes active, unless it already is,
+     * and installs the wrapped sorter again and forgets the order and prediction when it is no
+     * longer active.
+     * @param active true if global lenient shutdown is active
+     */
+    static void update(boolean active) {
+        if (!active) {
+            reset();
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        Queue queue = jenkins.getQueue();
+        synchronized (getState().lock) {
+            QueueSorter current = queue.getSorter();
+            if (active && !(current instanceof DrainSorter)) {
+                queue.setSorter(new DrainSorter(current));
+            } else if (!active && current instanceof DrainSorter) {
+                queue.setSorter(((DrainSorter)current).delegate);
+            }
+        }
+    }
+
+    /**
+     * Forgets the order, the chain lengths and the prediction.
+     */
+    static void reset() {
+        State state = getState();
+        synchronized (state.lock) {
+            state.paths = null;
+            state.order = Order.EMPTY;
+            state.generation++;
+            state.predictedCompletionTime = 0;
+        }
+    }
+
+    /**
+     * Predicts again once a build has started.
+     */
+    static void started() {
+        if (isOrdering()) {
+            schedulePrediction();
+        }
+    }
+
+    /**
+     * Outdates the chain lengths, since the estimated durations may have changed,
+     * and predicts again once a build has completed.
+     */
+    static void completed() {
+        getState().completions.incrementAndGet();
+        if (isOrdering()) {
+            schedulePrediction();
+        }
+    }
+
+    /**
+     * Gets when the drain is predicted to finish, based on the last ordering of the queue.
+     * @return the time in milliseconds since the epoch, or 0 if not predicted
+     */
+    static long getPredictedCompletionTime() {
+        return getState().predictedCompletionTime;
+    }
+
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+        State state = getState();
+        if (!isOrdering()) {
+            state.predictedCompletionTime = 0;
+            return;
+        }
+        final Map<Long, Long> chainLengths = new HashMap<Long, Long>();
+        final Map<Long, Long> durations = new HashMap<Long, Long>();
+        CriticalPaths current = state.paths;
+        if (current != null && current.isOutdated()) {
+            current = null;
+        }
+        boolean unknown = false;
+        for (Queue.BuildableItem item : buildables) {
+            Long chain = null;
+            Long duration = null;
+            if (current != null) {
+                chain = current.getKnownChain(item.task);
+                duration = current.getKnownDuration(item.task);
+            }
+            if (chain == null || duration == null) {
+                //Computed on the Timer pool, the queue is sorted again once it is known
+                unknown = true;
+                chain = 0L;
+                duration = 0L;
+            }
+            chainLengths.put(item.getId(), chain);
+            durations.put(item.getId(), duration);
+        }
+        //List.sort is stable, so the order of the wrapped sorter is kept between equal items
+        buildables.sort(new Comparator<Queue.BuildableItem>() {
+            @Override
+            public int compare(Queue.BuildableItem a, Queue.BuildableItem b) {
+                int byChain = Long.compare(chainLengths.get(b.getId()), chainLengths.get(a.getId()));
+                if (byChain != 0) {
+                    return byChain;
+                }
+                return Long.compare(durations.get(a.getId()), durations.get(b.getId()));
+            }
+        });
+        long[] ids = new long[buildables.size()];
+        List<Queue.Task> tasks = new ArrayList<Queue.Task>(buildables.size());
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buildables.get(i).getId();
+            tasks.add(buildables.get(i).task);
+        }
+        if (unknown || !Arrays.equals(ids, state.order.ids)) {
+            state.order = new Order(ids, Collections.unmodifiableList(tasks), unknown);
+            schedulePrediction();
+        }
+    }
+
+    @Override
+    public void sortBlockedItems(List<Queue.BlockedItem> blockedItems) {
+        if (delegate != null) {
+            delegate.sortBlockedItems(blockedItems);
+        } else {
+            super.sortBlockedItems(blockedItems);
+        }
+    }
+
+    /**
+     * Checks if the permitted builds are being ordered.
+     * @return true if global lenient shutdown is active and the ordering is enabled
+     */
+    private static boolean isOrdering() {
+        return DrainActivity.isGlobalDraining()
+                && ShutdownConfiguration.getInstance().getSnapshot().isLongestChainFirst();
+    }
+
+    /**
+     * Gets the shared durations and chain lengths, starting over if the dependency graph was
+     * rebuilt or a build has completed since they were computed.
+     * Computing them may load builds, so the queue lock should not be held.
+     * @return the chain lengths
+     */
+    static CriticalPaths getPaths() {
+        State state = getState();
+        CriticalPaths current = state.paths;
+        if (current == null || current.isOutdated()) {
+            current = new CriticalPaths(state.completions);
+            state.paths = current;
+        }
+        return current;
+    }
+
+    /**
+     * Predicts on the {@link Timer} pool, once more if something changed while predicting.
+     * Does not block, so it may be called with the queue lock held.
+     */
+    private static void schedulePrediction() {
+        final State state = getState();
+        state.predictionPending.set(true);
+        if (!state.predictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (state.predictionPending.getAndSet(false)) {
+                        try {
+                            predict(state);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Failed to predict when lenient shutdown is done", e);
+                        }
+                    }
+                } finally {
+                    state.predictionScheduled.set(false);
+                }
+                //Requested after the last check but before being unscheduled
+                if (state.predictionPending.get()) {
+                    schedulePrediction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Predicts when the drain finishes by assigning the ordered items, in order, to the
+     * executor that becomes free first, on the nodes that are not shutting down, and
+     * publishes the prediction unless the sorter was reset meanwhile.
+     * @param state the order to predict from and the prediction to publish
+     */
+    private static void predict(State state) {
+        List<Run<?, ?>> runs = RunningWork.getRunningBuilds();
+        long started;
+        synchronized (state.lock) {
+            started = state.generation;
+        }
+        Order current = state.order;
+        CriticalPaths currentPaths = getPaths();
+        long[] durations = new long[current.tasks.size()];
+        long[] chains = new long[current.tasks.size()];
+        long[] downstreams = new long[runs.size()];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = currentPaths.durationOf(current.tasks.get(i));
+            chains[i] = currentPaths.chainOf(current.tasks.get(i));
+        }
+        for (int i = 0; i < downstreams.length; i++) {
+            downstreams[i] = currentPaths.downstreamOf(runs.get(i).getParent());
+        }
+        if (current.unknown) {
+            //The chain lengths are known now, so the items can be ordered by them
+            Jenkins.get().getQueue().scheduleMaintenance();
+        }
+        long completion = predict(runs, downstreams, durations, chains);
+        synchronized (state.lock) {
+            if (state.generation == started && isOrdering()) {
+                state.predictedCompletionTime = completion;
+            }
+        }
+    }
+
+    /**
+     * Predicts when the drain finishes.
+     * @param runs the running builds
+     * @param downstreams the longest downstream chain of each running build
+     * @param durations the estimated duration of each ordered item
+     * @param chains the chain length of each ordered item
+     * @return the time in milliseconds since the epoch, or 0 if there are no executors to build on
+     */
+    private static long predict(List<Run<?, ?>> runs, long[] downstreams, long[] durations, long[] chains) {
+        long now = System.currentTimeMillis();
+        long completion = now;
+        Set<String> drainingNodes = PluginImpl.getInstance().getShuttingDownNodeNames();
+        PriorityQueue<Long> freeAt = new PriorityQueue<Long>();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (isAvailable(computer, drainingNodes)) {
+                for (int i = 0; i < computer.countIdle(); i++) {
+                    freeAt.add(now);
+                }
+            }
+        }
+        for (int i = 0; i < downstreams.length; i++) {
+            long end = now;
+            Executor executor = runs.get(i).getExecutor();
+            if (executor != null) {
+                end += Math.max(executor.getEstimatedRemainingTimeMillis(), 0);
+                if (!drainingNodes.contains(executor.getOwner().getName())) {
+                    freeAt.add(end);
+                }
+            }
+            completion = Math.max(completion, end + downstreams[i]);
+        }
+        return schedule(freeAt, completion, durations, chains);
+    }
+
+    /**
+     * Checks if queued items can be built on argument computer during global lenient shutdown.
+     * @param computer the computer
+     * @param drainingNodes the names of the nodes shutting down leniently
+     * @return true if the computer is online, accepts tasks and is not shutting down
+     */
+    static boolean isAvailable(Computer computer, Set<String> drainingNodes) {
+        return computer.isOnline() && computer.isAcceptingTasks() && !drainingNodes.contains(computer.getName());
+    }
+
+    /**
+     * Assigns items, in order, to the executor that becomes free first.
+     * @param freeAt when each executor becomes free, consumed by this call
+     * @param completion when the work that is not assigned is done
+     * @param durations the estimated duration of each item
+     * @param chains the chain length of each item, which may end after its executor is free again
+     * @return when all work is done, in milliseconds since the epoch, or 0 if there are items
+     *         but no executors to build them on
+     */
+    static long schedule(PriorityQueue<Long> freeAt, long completion, long[] durations, long[] chains) {
+        if (durations.length == 0) {
+            return completion;
+        }
+        if (freeAt.isEmpty()) {
+            return 0;
+        }
+        long done = completion;
+        for (int i = 0; i < durations.length; i++) {
+            long start = freeAt.poll();
+            freeAt.add(start + durations[i]);
+            done = Math.max(done, start + chains[i]);
+        }
+        return done;
+    }
+
+    /**
+     * Estimated durations and chain lengths through the dependency graph, memoized until
+     * outdated. Thread safe; callers racing for the same job may both compute it.
+     */
+    static final class CriticalPaths {
+        private final DependencyGraph graph = Jenkins.get().getDependencyGraph();
+        private final AtomicLong completionCount;
+        private final long completions;
+        private final Map<String, Long> durations = new ConcurrentHashMap<String, Long>();
+        private final Map<String, Long> chains = new ConcurrentHashMap<String, Long>();
+
+        /**
+         * Constructor.
+         * @param completionCount the number of completed builds, which outdates the durations
+         */
+        private CriticalPaths(AtomicLong completionCount) {
+            this.completionCount = completionCount;
+            this.completions = completionCount.get();
+        }
+
+        /**
+         * Checks if the dependency graph was rebuilt or a build has completed since construction.
+         * @return true if outdated
+         */
+        boolean isOutdated() {
+            return graph != Jenkins.get().getDependencyGraph() || completions != completionCount.get();
+        }
+
+        /**
+         * Gets the estimated duration of a build of argument task.
+         * @param task the task
+         * @return the duration in milliseconds, 0 if unknown
+         */
+        long durationOf(Queue.Task task) {
+            if (!(task instanceof Job)) {
+                return 0;
+            }
+            Job<?, ?> job = (Job<?, ?>)task;
+            Long duration = durations.get(job.getFullName());
+            if (duration == null) {
+                duration = Math.max(job.getEstimatedDuration(), 0);
+                durations.put(job.getFullName(), duration);
+            }
+            return duration;
+        }
+
+        /**
+         * Gets the estimated duration of a build of argument task, if already known.
+         * @param task the task
+         * @return the duration in milliseconds, or null if it has not been computed
+         */
+        Long getKnownDuration(Queue.Task task) {
+            if (!(task instanceof Job)) {
+                return 0L;
+            }
+            return durations.get(((Job<?, ?>)task).getFullName());
+        }
+
+        /**
+         * Gets the estimated length of the chain started by a build of argument task, if already known.
+         * @param task the task
+         * @return the chain length in milliseconds, or null if it has not been computed
+         */
+        Long getKnownChain(Queue.Task task) {
+            if (!(task instanceof Job)) {
+                return 0L;
+            }
+            return chains.get(((Job<?, ?>)task).getFullName());
+        }
+
+        /**
+         * Gets the estimated length of the chain started by a build of argument task.
+         * @param task the task
+         * @return the duration of the build plus the longest downstream chain, in milliseconds
+         */
+        long chainOf(Queue.Task task) {
+            return chainOf(task, new HashSet<String>());
+        }
+
+        /**
+         * Gets the estimated length of the longest chain of downstream projects of argument job.
+         * @param job the job
+         * @return the duration in milliseconds, 0 if the job has no downstream projects
+         */
+        long downstreamOf(Job<?, ?> job) {
+            return downstreamOf(job, new HashSet<String>());
+        }
+
+        /**
+         * Gets the estimated length of the chain started by a build of argument task.
+         * @param task the task
+         * @param visiting the full names of the jobs on the path walked so far
+         * @return the duration of the build plus the longest downstream chain, in milliseconds
+         */
+        private long chainOf(Queue.Task task, Set<String> visiting) {
+            if (!(task instanceof Job)) {
+                return 0;
+            }
+            Job<?, ?> job = (Job<?, ?>)task;
+            Long chain = chains.get(job.getFullName());
+            if (chain == null) {
+                if (!visiting.add(job.getFullName())) {
+                    //A dependency cycle; do not follow it again
+                    return 0;
+                }
+                chain = durationOf(task) + downstreamOf(job, visiting);
+                visiting.remove(job.getFullName());
+                chains.put(job.getFullName(), chain);
+            }
+            return chain;
+        }
+
+        /**
+         * Gets the estimated length of the longest chain of downstream projects of argument job.
+         * @param job the job
+         * @param visiting the full names of the jobs on the path walked so far
+         * @return the duration in milliseconds, 0 if the job has no downstream projects
+         */
+        private long downstreamOf(Job<?, ?> job, Set<String> visiting) {
+            long longest = 0;
+            if (job instanceof AbstractProject) {
+                for (AbstractProject<?, ?> downstream : graph.getDownstream((AbstractProject<?, ?>)job)) {
+                    longest = Math.max(longest, chainOf(downstream, visiting));
+                }
+            }
+            return longest;
+        }
+    }
+
+    /**
+     * The order of the buildable items and the prediction made from it, one per
+     * {@link PluginImpl} instance.
+     */
+    static final class State {
+        private final Object lock = new Object();
+
+        private volatile long predictedCompletionTime;
+
+        /**
+         * The shared durations and chain lengths, also used by {@link DrainEstimator}.
+         */
+        private volatile CriticalPaths paths;
+
+        /**
+         * The number of completed builds, which outdates the durations computed before.
+         */
+        private final AtomicLong completions = new AtomicLong();
+
+        /**
+         * The last order of the buildable items, replaced as a whole.
+         */
+        private volatile Order order = Order.EMPTY;
+
+        private final AtomicBoolean predictionScheduled = new AtomicBoolean();
+        private final AtomicBoolean predictionPending = new AtomicBoolean();
+
+        //Guarded by lock:
+        private long generation;
+    }
+
+    /**
+     * An order of the buildable items.
+     */
+    private static final class Order {
+        private static final Order EMPTY = new Order(new long[0], Collections.<Queue.Task>emptyList(), false);
+
+        private final long[] ids;
+        private final List<Queue.Task> tasks;
+        private final boolean unknown;
+
+        /**
+         * Constructor.
+         * @param ids the queue ids of the items, in order
+         * @param tasks the tasks of the items, in order
+         * @param unknown true if the chain length of some item was not known when ordering
+         */
+        private Order(long[] ids, List<Queue.Task> tasks, boolean unknown) {
+            this.ids = ids;
+            this.tasks = tasks;
+            this.unknown = unknown;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+/**
+ * The states of global lenient shutdown.
+ * <p>
+ * Activation moves from {@link #INACTIVE} or {@link #CANCELLED} to {@link #ANALYZING},
+ * and once the queue has been analyzed to {@link #DRAINING}. The state moves between
+ * {@link #DRAINING} and {@link #DRAINED} as permitted builds start and finish.
+ * Cancelling moves any active state to {@link #CANCELLED}.
+ */
+public enum DrainState {
+
+    /**
+     * Lenient shutdown has not been activated.
+     */
+    INACTIVE,
+
+    /**
+     * Lenient shutdown is activated and the queue is being analyzed.
+     */
+    ANALYZING,
+
+    /**
+     * Permitted builds are still queued or running.
+     */
+    DRAINING,
+
+    /**
+     * All permitted builds have finished.
+     */
+    DRAINED,
+
+    /**
+     * Lenient shutdown was cancelled.
+     */
+    CANCELLED;
+
+    /**
+     * Checks if this state means that lenient shutdown is active.
+     * @return true for {@link #ANALYZING}, {@link #DRAINING} and {@link #DRAINED}
+     */
+    public boolean isActive() {
+        return this == ANALYZING || this == DRAINING || this == DRAINED;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+
+/**
+ * Cached lookup of the nodes that are online and not shutting down leniently,
+ * indexed by label. Used to find out if an item can build somewhere else than
+ * on a node that is about to go offline, without walking every node in the system.
+ * The index is dropped whenever a node goes online or offline, the node
+ * configuration changes or a node is toggled for lenient shutdown.
+ */
+final class NodeCandidateIndex {
+
+    private volatile Snapshot snapshot = new Snapshot();
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    NodeCandidateIndex() { }
+
+    /**
+     * Gets the index of the running plugin.
+     * @return the index
+     */
+    private static NodeCandidateIndex get() {
+        return PluginImpl.getInstance().getNodeCandidateIndex();
+    }
+
+    /**
+     * Gets the online nodes, not shutting down leniently, that may build items with the argument label.
+     * For items without a label only nodes that accept unlabeled items are returned.
+     * @param label the label of the item, may be null
+     * @return unmodifiable list of candidate nodes
+     */
+    static List<Node> getCandidates(Label label) {
+        Snapshot current = get().snapshot;
+        if (label == null) {
+            List<Node> unlabeled = current.unlabeled;
+            if (unlabeled == null) {
+                unlabeled = collect(allNodes(), true);
+                current.unlabeled = unlabeled;
+            }
+            return unlabeled;
+        }
+        List<Node> candidates = current.byLabel.get(label);
+        if (candidates == null) {
+            candidates = collect(label.getNodes(), false);
+            current.byLabel.putIfAbsent(label, candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Drops the cached index; it is rebuilt on the next lookup.
+     */
+    static void invalidate() {
+        NodeCandidateIndex index = get();
+        index.snapshot = new Snapshot();
+        index.version.incrementAndGet();
+        DrainActivity.advanceEpoch();
+    }
+
+    /**
+     * Gets a version number that changes every time the index is invalidated.
+     * @return the version
+     */
+    static long getVersion() {
+        return get().version.get();
+    }
+
+    /**
+     * Gets all nodes including the master.
+     * @return list of nodes
+     */
+    private static List<Node> allNodes() {
+        Jenkins jenkins = Jenkins.get();
+        List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+        nodes.add(jenkins);
+        return nodes;
+    }
+
+    /**
+     * Filters out the nodes that cannot take any new work.
+     * @param nodes the nodes to filter
+     * @param unlabeled true if the nodes should accept items without a label
+     * @return unmodifiable list of candidate nodes
+     */
+    private static List<Node> collect(Iterable<Node> nodes, boolean unlabeled) {
+        PluginImpl plugin = PluginImpl.getInstance();
+        List<Node> candidates = new ArrayList<Node>();
+        for (Node node : nodes) {
+            Computer computer = node.toComputer();
+            if (computer == null || !computer.isOnline()) {
+                continue;
+            }
+            if (unlabeled && node.getMode() == Node.Mode.EXCLUSIVE) {
+                continue;
+            }
+            if (plugin != null && plugin.isNodeShuttingDown(node.getNodeName())) {
+                continue;
+            }
+            candidates.add(node);
+        }
+        return Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     * The cached candidates, replaced as a whole when invalidated.
+     */
+    private static final class Snapshot {
+        private final ConcurrentMap<Label, List<Node>> byLabel = new ConcurrentHashMap<Label, List<Node>>();
+        private volatile List<Node> unlabeled;
+    }
+
+    /**
+     * Invalidates the index when nodes change state or configuration.
+     */
+    @Extension
+    public static class Invalidator extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate();
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            invalidate();
+        }
+
+        @Override
+        public void onTemporarilyOnline(Computer c) {
+            invalidate();
+        }
+
+        @Override
+        public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+            invalidate();
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Queue;
+import hudson.model.User;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Sets nodes shutting down leniently offline as soon as they become idle.
+ * <p>
+ * Checks are requested when an executor finishes its task, see {@link RunningWork}, and
+ * when items leave the queue, and run on the {@link Timer} pool. Requests for a node that
+ * already has a check pending are merged into that check, so a busy node never has more
+ * than one check scheduled.
+ */
+final class NodeIdleCheck {
+
+    private static final Logger logger = Logger.getLogger(NodeIdleCheck.class.getName());
+
+    /**
+     * Names of the nodes with a check pending.
+     */
+    private static final Set<String> PENDING = new HashSet<String>();
+
+    /**
+     * Hiding utility class constructor.
+     */
+    private NodeIdleCheck() { }
+
+    /**
+     * Requests a check if argument computer is idle, if it is shutting down leniently.
+     * @param computer the computer to check
+     */
+    static void request(final Computer computer) {
+        final String nodeName = computer.getName();
+        if (!PluginImpl.getInstance().isNodeShuttingDown(nodeName) || Jenkins.get().isTerminating()) {
+            return;
+        }
+        boolean schedule;
+        synchronized (PENDING) {
+            schedule = PENDING.add(nodeName);
+        }
+        if (schedule) {
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    check(computer, nodeName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests a check for every node that is shutting down leniently.
+     */
+    static void requestAll() {
+        Jenkins jenkins = Jenkins.get();
+        for (String nodeName : PluginImpl.getInstance().getShuttingDownNodeNames()) {
+            Computer computer = jenkins.getComputer(nodeName);
+            if (computer != null) {
+                request(computer);
+            }
+        }
+    }
+
+    /**
+     * Sets argument computer offline if it is idle and no queued item needs it.
+     * @param computer the computer to check
+     * @param nodeName the name of the computer
+     */
+    private static void check(Computer computer, String nodeName) {
+        synchronized (PENDING) {
+            PENDING.remove(nodeName);
+        }
+        PluginImpl plugin = PluginImpl.getInstance();
+        if (plugin.isNodeShuttingDown(nodeName) && !PluginImpl.isTemporarilyOffline(computer)
+                && !QueueUtils.isBuilding(computer)
+                && !QueueUtils.hasNodeExclusiveItemInQueue(computer)) {
+            logger.log(Level.INFO, "Node {0} idle; setting offline since lenient "
+                    + "shutdown was active for this node", nodeName);
+
+            User user = plugin.getOfflineByUser(nodeName);
+            computer.setTemporaryOfflineCause(new LenientOfflineCause(user));
+        }
+    }
+
+    /**
+     * Requests checks when an item leaves the queue, since that item may have been
+     * the last one that needed a node shutting down.
+     */
+    @Extension
+    public static class QueueWatcher extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (DrainActivity.isAnyNodeDraining()) {
+                requestAll();
+            }
+        }
+    }
+}
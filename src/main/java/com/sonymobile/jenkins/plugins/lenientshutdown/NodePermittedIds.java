@@ -0,0 +1,138 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Collection;
+
+/**
+ * The queue ids permitted to build on one node shutting down leniently.
+ * <p>
+ * The ids found by the analysis are kept in a set that is never modified once published;
+ * a new analysis builds a complete set and swaps it in with a single volatile write, so
+ * readers never block and never see a partly cleared set. Ids permitted one at a time
+ * while draining are kept in a separate concurrent set, which is kept when the analyzed
+ * ids are replaced, so ids permitted while an analysis runs are not lost.
+ * Replacing and pruning the ids are serialized with each other.
+ */
+final class NodePermittedIds {
+
+    private volatile Snapshot snapshot = new Snapshot(new QueueIdSet(), new QueueIdSet());
+
+    /**
+     * Checks if argument queue id is permitted.
+     * @param id the queue id
+     * @return true if permitted
+     */
+    boolean contains(long id) {
+        Snapshot current = snapshot;
+        return current.analyzed.contains(id) || current.added.contains(id);
+    }
+
+    /**
+     * Checks if any of argument queue ids is permitted.
+     * @param ids the queue ids
+     * @return true if at least one is permitted
+     */
+    boolean containsAny(long[] ids) {
+        Snapshot current = snapshot;
+        return current.analyzed.containsAny(ids) || current.added.containsAny(ids);
+    }
+
+    /**
+     * Permits a single queue id.
+     * @param id the queue id
+     * @return true if the id was not already permitted
+     */
+    boolean add(long id) {
+        Snapshot current = snapshot;
+        return !current.analyzed.contains(id) && current.added.add(id);
+    }
+
+    /**
+     * Replaces the analyzed ids with the result of an analysis, keeping the ids added one at a time.
+     * @param analyzedIds the permitted queue ids
+     */
+    synchronized void replace(Collection<Long> analyzedIds) {
+        Snapshot current = snapshot;
+        QueueIdSet analyzed = new QueueIdSet();
+        for (long id : analyzedIds) {
+            if (!current.added.contains(id)) {
+                analyzed.add(id);
+            }
+        }
+        //Keep the same set of added ids, so that concurrent adds are not lost
+        snapshot = new Snapshot(analyzed, current.added);
+    }
+
+    /**
+     * Removes argument queue ids.
+     * @param ids the queue ids to remove
+     */
+    synchronized void removeAll(Collection<Long> ids) {
+        Snapshot current = snapshot;
+        boolean analyzedChanged = false;
+        for (long id : ids) {
+            current.added.remove(id);
+            analyzedChanged |= current.analyzed.contains(id);
+        }
+        if (analyzedChanged) {
+            QueueIdSet analyzed = new QueueIdSet();
+            for (long id : current.analyzed.toArray()) {
+                if (!ids.contains(id)) {
+                    analyzed.add(id);
+                }
+            }
+            //Keep the same set of added ids, so that concurrent adds are not lost
+            snapshot = new Snapshot(analyzed, current.added);
+        }
+    }
+
+    /**
+     * Gets the number of permitted ids.
+     * @return the number of ids
+     */
+    int size() {
+        Snapshot current = snapshot;
+        return current.analyzed.size() + current.added.size();
+    }
+
+    /**
+     * Analyzed ids and the ids added since the analysis.
+     */
+    private static final class Snapshot {
+        private final QueueIdSet analyzed;
+        private final QueueIdSet added;
+
+        /**
+         * Creates a snapshot.
+         * @param analyzed the analyzed ids, not modified after this
+         * @param added the ids added one at a time
+         */
+        private Snapshot(QueueIdSet analyzed, QueueIdSet added) {
+            this.analyzed = analyzed;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Splits a drain analysis over a snapshot of queue items across a {@link ForkJoinPool}
+ * and merges the permitted ids found per chunk.
+ * <p>
+ * The parallelism is set with the system property
+ * {@code com.sonymobile.jenkins.plugins.lenientshutdown.ParallelAnalysis.parallelism};
+ * the default of one analyzes on the calling thread without any pool.
+ */
+final class ParallelAnalysis {
+
+    /**
+     * The configured parallelism of the shared instance.
+     */
+    static final int PARALLELISM = SystemProperties.getInteger(ParallelAnalysis.class.getName() + ".parallelism", 1);
+
+    /**
+     * Number of items analyzed by one task, small enough to balance and large enough
+     * for the task overhead not to matter.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    private static ParallelAnalysis shared;
+
+    private final int parallelism;
+
+    private ForkJoinPool pool;
+
+    /**
+     * Creates an analysis with its own pool.
+     * @param parallelism the number of worker threads; one or less analyzes on the calling thread
+     */
+    ParallelAnalysis(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets the instance shared by all drain analyses.
+     * @return the shared instance
+     */
+    static synchronized ParallelAnalysis getShared() {
+        if (shared == null) {
+            shared = new ParallelAnalysis(PARALLELISM);
+        }
+        return shared;
+    }
+
+    /**
+     * Stops the worker threads of the shared instance.
+     */
+    static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.shutdown();
+            shared = null;
+        }
+    }
+
+    /**
+     * Analyzes argument items and merges the results.
+     * @param items the items to analyze
+     * @param collector analyzes a range of the items
+     * @param <T> the item type
+     * @return map of node name to permitted ids
+     */
+    <T> Map<String, Set<Long>> collect(List<T> items, Collector<T> collector) {
+        if (parallelism <= 1 || items.size() <= CHUNK_SIZE) {
+            Map<String, Set<Long>> permitted = new HashMap<String, Set<Long>>();
+            collector.collect(items, 0, items.size(), permitted);
+            return permitted;
+        }
+        return getPool().invoke(new CollectTask<T>(items, 0, items.size(), collector));
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Gets the pool, creating it on first use.
+     * @return the pool
+     */
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool forkJoinPool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(
+                            forkJoinPool);
+                    thread.setName("Lenient shutdown analysis worker " + thread.getPoolIndex());
+                    return thread;
+                }
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Merges the ids of one result into another.
+     * @param into the result to add to
+     * @param from the result to add
+     * @return the merged result
+     */
+    private static Map<String, Set<Long>> merge(Map<String, Set<Long>> into, Map<String, Set<Long>> from) {
+        for (Map.Entry<String, Set<Long>> entry : from.entrySet()) {
+            Set<Long> ids = into.get(entry.getKey());
+            if (ids == null) {
+                into.put(entry.getKey(), entry.getValue());
+            } else {
+                ids.addAll(entry.getValue());
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Analyzes a range of items.
+     * @param <T> the item type
+     */
+    interface Collector<T> {
+
+        /**
+         * Adds the permitted ids found among the items in the range to the argument map.
+         * @param items the items
+         * @param from index of the first item to analyze
+         * @param to index after the last item to analyze
+         * @param permitted map of node name to permitted ids, to add to
+         */
+        void collect(List<T> items, int from, int to, Map<String, Set<Long>> permitted);
+    }
+
+    /**
+     * Analyzes a range of items, splitting it in halves until small enough.
+     * @param <T> the item type
+     */
+    private static final class CollectTask<T> extends RecursiveTask<Map<String, Set<Long>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<T> items;
+        private final int from;
+        private final int to;
+        private final transient Collector<T> collector;
+
+        /**
+         * Creates a task.
+         * @param items the items
+         * @param from index of the first item to analyze
+         * @param to index after the last item to analyze
+         * @param collector analyzes a range of the items
+         */
+        private CollectTask(List<T> items, int from, int to, Collector<T> collector) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.collector = collector;
+        }
+
+        @Override
+        protected Map<String, Set<Long>> compute() {
+            if (to - from <= CHUNK_SIZE) {
+                Map<String, Set<Long>> permitted = new HashMap<String, Set<Long>>();
+                collector.collect(items, from, to, permitted);
+                return permitted;
+            }
+            int middle = (from + to) >>> 1;
+            CollectTask<T> upper = new CollectTask<T>(items, middle, to, collector);
+            upper.fork();
+            Map<String, Set<Long>> lower = new CollectTask<T>(items, from, middle, collector).compute();
+            return merge(lower, upper.join());
+        }
+    }
+}
@@ -26,26 +26,23 @@
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import org.apache.commons.collections.CollectionUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import hudson.Plugin;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
 import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.User;
 import hudson.util.CopyOnWriteMap;
 import jenkins.model.Jenkins;
-import jenkins.security.SecurityContextExecutorService;
 
 /**
  * Plugin base class.
@@ -55,6 +52,11 @@ import jenkins.security.SecurityContextExecutorService;
 @SuppressWarnings("deprecation" /* there's no way around it */)
 public class PluginImpl extends Plugin {
 
+    /**
+     * The registered instance, resolved once the extensions are loaded and forgotten when Jenkins terminates.
+     */
+    private static volatile PluginImpl instance;
+
     /**
      * Node name -> is in lenient offline mode
      */
@@ -68,16 +70,158 @@ public class PluginImpl extends Plugin {
     /**
      * Node name -> Set of queue item ids that are allowed to build
      */
-    private Map<String, Set<Long>> permittedSlaveQueuedItemIds = Collections.synchronizedMap(
-            new HashMap<String, Set<Long>>());
+    private final Map<String, NodePermittedIds> permittedSlaveQueuedItemIds =
+            new ConcurrentHashMap<String, NodePermittedIds>();
+
+    //The drain state, kept per instance so that a new Jenkins instance in this JVM starts afresh:
+    private final transient DrainActivity drainActivity = new DrainActivity();
+    private final transient QueueTracker queueTracker = new QueueTracker();
+    private final transient RunningWork runningWork = new RunningWork();
+    private final transient BlockedItems blockedItems = new BlockedItems();
+    private final transient DrainEstimator drainEstimator = new DrainEstimator();
+    private final transient DrainSorter.State drainSorterState = new DrainSorter.State();
+    private final transient DispatchCache dispatchCache = new DispatchCache();
+    private final transient DispatchMetrics dispatchMetrics = new DispatchMetrics();
+    private final transient NodeCandidateIndex nodeCandidateIndex = new NodeCandidateIndex();
+    private final transient UpstreamRunIndex upstreamRunIndex = new UpstreamRunIndex();
+    private final transient DownstreamClosure downstreamClosure = new DownstreamClosure();
+    private final transient QueueIdPruner queueIdPruner = new QueueIdPruner();
+
+    /**
+     * Stops the analysis threads.
+     */
+    @Override
+    public void stop() {
+        DrainAnalyzer.shutdown();
+        ParallelAnalysis.shutdownShared();
+    }
 
     /**
      * Returns this singleton instance.
+     * Once Jenkins is initialized this is a single field read.
      *
      * @return the singleton.
      */
     public static PluginImpl getInstance() {
-        return Jenkins.get().getPlugin(PluginImpl.class);
+        PluginImpl plugin = instance;
+        if (plugin == null) {
+            plugin = Jenkins.get().getPlugin(PluginImpl.class);
+        }
+        return plugin;
+    }
+
+    /**
+     * Gets the summary of the lenient shutdowns in progress.
+     * @return the summary of the lenient shutdowns in progress
+     */
+    DrainActivity getDrainActivity() {
+        return drainActivity;
+    }
+
+    /**
+     * Gets the tracker of the queue items.
+     * @return the tracker of the queue items
+     */
+    QueueTracker getQueueTracker() {
+        return queueTracker;
+    }
+
+    /**
+     * Gets the registry of the running builds.
+     * @return the registry of the running builds
+     */
+    RunningWork getRunningWork() {
+        return runningWork;
+    }
+
+    /**
+     * Gets the items blocked by lenient shutdown.
+     * @return the items blocked by lenient shutdown
+     */
+    BlockedItems getBlockedItems() {
+        return blockedItems;
+    }
+
+    /**
+     * Gets the estimator of when lenient shutdown is done.
+     * @return the estimator of when lenient shutdown is done
+     */
+    DrainEstimator getDrainEstimator() {
+        return drainEstimator;
+    }
+
+    /**
+     * Gets the order and prediction of the drain sorter.
+     * @return the order and prediction of the drain sorter
+     */
+    DrainSorter.State getDrainSorterState() {
+        return drainSorterState;
+    }
+
+    /**
+     * Gets the cache of the dispatch decisions.
+     * @return the cache of the dispatch decisions
+     */
+    DispatchCache getDispatchCache() {
+        return dispatchCache;
+    }
+
+    /**
+     * Gets the metrics of the dispatch decisions.
+     * @return the metrics of the dispatch decisions
+     */
+    DispatchMetrics getDispatchMetrics() {
+        return dispatchMetrics;
+    }
+
+    /**
+     * Gets the index of the nodes able to build.
+     * @return the index of the nodes able to build
+     */
+    NodeCandidateIndex getNodeCandidateIndex() {
+        return nodeCandidateIndex;
+    }
+
+    /**
+     * Gets the index of the upstream builds.
+     * @return the index of the upstream builds
+     */
+    UpstreamRunIndex getUpstreamRunIndex() {
+        return upstreamRunIndex;
+    }
+
+    /**
+     * Gets the downstream builds of the permitted items.
+     * @return the downstream builds of the permitted items
+     */
+    DownstreamClosure getDownstreamClosure() {
+        return downstreamClosure;
+    }
+
+    /**
+     * Gets the pruner of the retired queue ids.
+     * @return the pruner of the retired queue ids
+     */
+    QueueIdPruner getQueueIdPruner() {
+        return queueIdPruner;
+    }
+
+    /**
+     * Resolves the registered instance once the extensions are loaded.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    @Restricted(NoExternalUse.class)
+    public static void resolveInstance() {
+        instance = Jenkins.get().getPlugin(PluginImpl.class);
+    }
+
+    /**
+     * Forgets the resolved instance, so that the one of a new Jenkins instance is looked up.
+     */
+    @Terminator
+    @Restricted(NoExternalUse.class)
+    public static void resetInstance() {
+        instance = null;
     }
 
     /**
@@ -102,6 +246,20 @@ public class PluginImpl extends Plugin {
                 && lenientOfflineSlaves.get(nodeName);
     }
 
+    /**
+     * Gets the names of all nodes that are shutting down leniently.
+     * @return set of node names
+     */
+    Set<String> getShuttingDownNodeNames() {
+        Set<String> nodeNames = new HashSet<String>();
+        for (Map.Entry<String, Boolean> entry : lenientOfflineSlaves.entrySet()) {
+            if (entry.getValue()) {
+                nodeNames.add(entry.getKey());
+            }
+        }
+        return nodeNames;
+    }
+
     /**
      * Toggles lenient shutdown mode for argument node.
      * @param nodeName the node name to toggle for
@@ -112,7 +270,14 @@ public class PluginImpl extends Plugin {
             lenientOfflineSlaves.put(nodeName, true);
         } else {
             lenientOfflineSlaves.put(nodeName, !nodeShuttingDown);
+            if (nodeShuttingDown) {
+                permittedSlaveQueuedItemIds.remove(nodeName);
+                BlockedItems.clear(nodeName);
+                DrainEstimator.clear(nodeName);
+            }
         }
+        DrainActivity.setAnyNodeDraining(lenientOfflineSlaves.containsValue(Boolean.TRUE));
+        NodeCandidateIndex.invalidate();
     }
 
     /**
@@ -120,10 +285,6 @@ public class PluginImpl extends Plugin {
      *
      * @param computer the computer.
      */
-    @SuppressFBWarnings(
-        value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
-        justification = "Fire and forget for asynchronous processing"
-    )
     public void setNodeOffline(final Computer computer) {
         if (computer == null) {
             return;
@@ -138,16 +299,7 @@ public class PluginImpl extends Plugin {
             toggleNodeShuttingDown(nodeName);
             setOfflineByUser(nodeName, User.current());
 
-            ExecutorService service = new SecurityContextExecutorService(Executors.newSingleThreadExecutor());
-            service.submit(new Runnable() {
-                @Override
-                public void run() {
-                    Set<Long> permittedQueuedItemIds = getPermittedQueuedItemIds(nodeName);
-                    permittedQueuedItemIds.clear();
-                    permittedQueuedItemIds.addAll(QueueUtils.getPermittedQueueItemIds(nodeName));
-                    permittedQueuedItemIds.addAll(QueueUtils.getRunninProjectsQueueIDs(nodeName));
-                }
-            });
+            DrainAnalyzer.analyze(nodeName);
 
         } else { //No builds; we can take offline directly
             User currentUser = User.current();
@@ -166,12 +318,9 @@ public class PluginImpl extends Plugin {
      * @return true if at least one of the projects is white listed
      */
     @Restricted(NoExternalUse.class)
-    public boolean isAnyPermittedUpstreamQueueId(Set<Long> queueItemsIds, String nodeName) {
-        boolean isPermitted = false;
-        Set<Long> permittedQueueItemIds = getPermittedQueuedItemIds(nodeName);
-        Collection<?> intersection = CollectionUtils.intersection(queueItemsIds, permittedQueueItemIds);
-        isPermitted = !intersection.isEmpty();
-        return isPermitted;
+    public boolean isAnyPermittedUpstreamQueueId(long[] queueItemsIds, String nodeName) {
+        NodePermittedIds permittedQueuedItemIds = permittedSlaveQueuedItemIds.get(nodeName);
+        return permittedQueuedItemIds != null && permittedQueuedItemIds.containsAny(queueItemsIds);
     }
 
     /**
@@ -183,8 +332,8 @@ public class PluginImpl extends Plugin {
      */
     @Restricted(NoExternalUse.class)
     public boolean wasAlreadyQueued(long id, String nodeName) {
-        Set<Long> alreadyQueuedItemIds = getPermittedQueuedItemIds(nodeName);
-        return alreadyQueuedItemIds.contains(id);
+        NodePermittedIds alreadyQueuedItemIds = permittedSlaveQueuedItemIds.get(nodeName);
+        return alreadyQueuedItemIds != null && alreadyQueuedItemIds.contains(id);
     }
 
     /**
@@ -194,8 +343,12 @@ public class PluginImpl extends Plugin {
      */
     @Restricted(NoExternalUse.class)
     public void addPermittedUpstreamQueueId(long id, String nodeName) {
-        Set<Long> permittedUpstreamProjectNames = getPermittedQueuedItemIds(nodeName);
+        NodePermittedIds permittedUpstreamProjectNames = getPermittedQueuedItemIds(nodeName);
         permittedUpstreamProjectNames.add(id);
+        if (!isNodeShuttingDown(nodeName)) {
+            //Toggled back online meanwhile, do not keep the entry re-created above
+            permittedSlaveQueuedItemIds.remove(nodeName, permittedUpstreamProjectNames);
+        }
     }
 
     /**
@@ -226,14 +379,66 @@ public class PluginImpl extends Plugin {
      * @param nodeName the node to get specific queue items for
      * @return set of queued item ids
      */
-    @Restricted(NoExternalUse.class)
-    public synchronized Set<Long> getPermittedQueuedItemIds(String nodeName) {
-        Set<Long> permittedQueuedItemIds = permittedSlaveQueuedItemIds.get(nodeName);
+    NodePermittedIds getPermittedQueuedItemIds(String nodeName) {
+        NodePermittedIds permittedQueuedItemIds = permittedSlaveQueuedItemIds.get(nodeName);
         if (permittedQueuedItemIds == null) {
-            permittedQueuedItemIds = new HashSet<Long>();
-            permittedSlaveQueuedItemIds.put(nodeName, permittedQueuedItemIds);
+            permittedQueuedItemIds = new NodePermittedIds();
+            NodePermittedIds existing = permittedSlaveQueuedItemIds.putIfAbsent(nodeName, permittedQueuedItemIds);
+            if (existing != null) {
+                permittedQueuedItemIds = existing;
+            }
         }
         return permittedQueuedItemIds;
     }
 
+    /**
+     * Replaces the permitted ids of argument node with the result of an analysis, unless the
+     * node is no longer shutting down. Checked under the same lock as toggling the node.
+     * @param nodeName the node name
+     * @param ids the permitted queue ids
+     * @return true if the ids were replaced, false if the node is not shutting down
+     */
+    synchronized boolean replacePermittedQueuedItemIds(String nodeName, Collection<Long> ids) {
+        if (!isNodeShuttingDown(nodeName)) {
+            return false;
+        }
+        getPermittedQueuedItemIds(nodeName).replace(ids);
+        return true;
+    }
+
+    /**
+     * Removes argument queue ids from the permitted ids of all nodes.
+     * @param ids the queue ids to remove
+     */
+    void removePermittedQueuedItemIds(Collection<Long> ids) {
+        for (NodePermittedIds permittedQueuedItemIds : permittedSlaveQueuedItemIds.values()) {
+            permittedQueuedItemIds.removeAll(ids);
+        }
+    }
+
+    /**
+     * Gets the number of permitted queue ids of argument node.
+     * @param nodeName the node name
+     * @return the number of ids
+     */
+    public int getPermittedQueuedItemIdCount(String nodeName) {
+        NodePermittedIds permittedQueuedItemIds = permittedSlaveQueuedItemIds.get(nodeName);
+        if (permittedQueuedItemIds == null) {
+            return 0;
+        }
+        return permittedQueuedItemIds.size();
+    }
+
+    /**
+     * Gets the number of permitted queue ids, summed over all nodes.
+     * @return the number of ids
+     */
+    public int getPermittedQueuedItemIdCount() {
+        int count = 0;
+        for (NodePermittedIds permittedQueuedItemIds : permittedSlaveQueuedItemIds.values()) {
+            count += permittedQueuedItemIds.size();
+        }
+        return count;
+    }
+
 }
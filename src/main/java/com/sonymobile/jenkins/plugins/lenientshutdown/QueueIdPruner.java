@@ -0,0 +1,165 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.util.Timer;
+
+/**
+ * Drops queue ids from the permitted, active and white listed sets once they can no
+ * longer matter, so that the sets stay bounded during long drains.
+ * <p>
+ * An id is retired when its build is finalized or its item is cancelled, and is removed
+ * in the next batched pass unless it is still queued or is the upstream of a queued item.
+ * Ids kept for that reason are retried in later passes.
+ */
+final class QueueIdPruner {
+
+    /**
+     * Delay before a pass, so that retired ids are pruned in batches.
+     */
+    private static final int PRUNE_DELAY_SECONDS = 30;
+
+    private final ConcurrentLinkedQueue<Long> retired = new ConcurrentLinkedQueue<Long>();
+
+    private final Object lock = new Object();
+
+    //Guarded by lock:
+    private boolean passScheduled;
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    QueueIdPruner() { }
+
+    /**
+     * Gets the pruner of the running plugin.
+     * @return the pruner
+     */
+    private static QueueIdPruner get() {
+        return PluginImpl.getInstance().getQueueIdPruner();
+    }
+
+    /**
+     * Notes that the argument queue id has left the system, if any lenient shutdown is active.
+     * @param id the queue id
+     */
+    static void retire(long id) {
+        if (DrainActivity.isIdle()) {
+            return;
+        }
+        QueueIdPruner pruner = get();
+        pruner.retired.add(id);
+        pruner.schedule();
+    }
+
+    /**
+     * Removes the retired ids that are no longer queued nor upstream of a queued item.
+     */
+    static void prune() {
+        get().pruneRetired();
+    }
+
+    /**
+     * Schedules a pass unless one is already pending.
+     */
+    private void schedule() {
+        synchronized (lock) {
+            if (passScheduled) {
+                return;
+            }
+            passScheduled = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    passScheduled = false;
+                }
+                pruneRetired();
+            }
+        }, PRUNE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes the retired ids that are no longer queued nor upstream of a queued item.
+     */
+    private void pruneRetired() {
+        List<Long> ids = new ArrayList<Long>();
+        for (Long id = retired.poll(); id != null; id = retired.poll()) {
+            ids.add(id);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        Set<Long> liveIds = new HashSet<Long>();
+        for (QueueTracker.TrackedItem tracked : QueueTracker.getItems()) {
+            liveIds.add(tracked.getId());
+            for (long upstreamId : QueueUtils.getUpstreamQueueIdArray(tracked.getItem())) {
+                liveIds.add(upstreamId);
+            }
+        }
+        Set<Long> removable = new HashSet<Long>();
+        boolean kept = false;
+        for (Long id : ids) {
+            if (liveIds.contains(id)) {
+                retired.add(id);
+                kept = true;
+            } else {
+                removable.add(id);
+            }
+        }
+        if (!removable.isEmpty()) {
+            ShutdownManageLink.getInstance().removeQueueIds(removable);
+            PluginImpl.getInstance().removePermittedQueuedItemIds(removable);
+        }
+        if (kept && !DrainActivity.isIdle()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Retires the ids of cancelled items.
+     */
+    @Extension
+    public static class QueueWatcher extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled()) {
+                retire(li.getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A set of queue ids stored as primitive longs in an open addressing hash table,
+ * avoiding the boxed {@link Long} and hash entry objects of a {@code HashSet<Long>}.
+ * Modifications are serialized by a write lock. Lookups are optimistic and only fall
+ * back to a read lock if a modification happened meanwhile, so readers on the queue
+ * maintenance thread normally neither block nor allocate.
+ * <p>
+ * The table grows when more than half full and shrinks again when less than an eighth
+ * full, so a burst of queued items does not keep its memory once the queue drains.
+ */
+public final class QueueIdSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The table shrinks to half its capacity when fewer than capacity / SHRINK_DIVISOR slots are used.
+     */
+    private static final int SHRINK_DIVISOR = 8;
+
+    /**
+     * Multiplier for Fibonacci hashing, 2^64 divided by the golden ratio.
+     */
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Marks a free slot in the table; id 0 is tracked separately.
+     */
+    private static final long FREE = 0;
+
+    private final StampedLock lock = new StampedLock();
+
+    private long[] table;
+    private int shift;
+    private int size;
+    private boolean containsFree;
+
+    /**
+     * Creates an empty set.
+     */
+    public QueueIdSet() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Adds a queue id.
+     * @param id the queue id
+     * @return true if the id was not already present
+     */
+    public boolean add(long id) {
+        long stamp = lock.writeLock();
+        try {
+            return addLocked(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a queue id while holding the write lock.
+     * @param id the queue id
+     * @return true if the id was not already present
+     */
+    private boolean addLocked(long id) {
+        if (id == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+        if (insert(id)) {
+            size++;
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds all queue ids of a snapshot.
+     * @param ids the queue ids to add
+     */
+    public void addAll(Collection<Long> ids) {
+        long stamp = lock.writeLock();
+        try {
+            int required = (size + ids.size()) * 2;
+            if (required > table.length) {
+                rehash(Integer.highestOneBit(required - 1) * 2);
+            }
+            for (long id : ids) {
+                addLocked(id);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a queue id.
+     * @param id the queue id
+     * @return true if the id was present
+     */
+    public boolean remove(long id) {
+        long stamp = lock.writeLock();
+        try {
+            if (id == FREE) {
+                if (!containsFree) {
+                    return false;
+                }
+                containsFree = false;
+                size--;
+                return true;
+            }
+            int slot = indexOf(table, shift, id);
+            if (slot < 0) {
+                return false;
+            }
+            deleteSlot(slot);
+            size--;
+            if (table.length > DEFAULT_CAPACITY && size * SHRINK_DIVISOR < table.length) {
+                rehash(table.length / 2);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Checks if a queue id is present.
+     * @param id the queue id
+     * @return true if present, otherwise false
+     */
+    public boolean contains(long id) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = containsUnlocked(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = containsUnlocked(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks if at least one of the argument queue ids is present,
+     * stopping at the first match.
+     * @param ids the queue ids to check
+     * @return true if any of them is present, otherwise false
+     */
+    public boolean containsAny(long[] ids) {
+        if (ids.length == 0) {
+            return false;
+        }
+        long stamp = lock.tryOptimisticRead();
+        boolean found = containsAnyUnlocked(ids);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = containsAnyUnlocked(ids);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks if at least one of the argument queue ids is present,
+     * stopping at the first match.
+     * Prefer {@link #containsAny(long[])} on hot paths, iterating a collection allocates.
+     * @param ids the queue ids to check
+     * @return true if any of them is present, otherwise false
+     */
+    public boolean containsAny(Iterable<Long> ids) {
+        for (long id : ids) {
+            if (contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all queue ids, releasing the memory of a grown table.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            if (table.length > DEFAULT_CAPACITY) {
+                allocate(DEFAULT_CAPACITY);
+            } else {
+                Arrays.fill(table, FREE);
+            }
+            containsFree = false;
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the ids, in no particular order.
+     * @return array of the ids
+     */
+    public long[] toArray() {
+        long stamp = lock.readLock();
+        try {
+            long[] ids = new long[size];
+            int index = 0;
+            if (containsFree) {
+                ids[index++] = FREE;
+            }
+            for (long value : table) {
+                if (value != FREE) {
+                    ids[index++] = value;
+                }
+            }
+            return ids;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the number of queue ids in the set.
+     * @return the size
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the capacity of the hash table.
+     * @return the number of slots
+     */
+    int capacity() {
+        long stamp = lock.readLock();
+        try {
+            return table.length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks if the set is empty.
+     * @return true if empty, otherwise false
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Looks up an id without locking; the result must be validated against the lock.
+     * @param id the id
+     * @return true if found, otherwise false
+     */
+    private boolean containsUnlocked(long id) {
+        if (id == FREE) {
+            return containsFree;
+        }
+        return indexOf(table, shift, id) >= 0;
+    }
+
+    /**
+     * Looks up ids without locking; the result must be validated against the lock.
+     * @param ids the ids
+     * @return true if any of them was found, otherwise false
+     */
+    private boolean containsAnyUnlocked(long[] ids) {
+        long[] current = table;
+        int currentShift = shift;
+        boolean currentContainsFree = containsFree;
+        for (long id : ids) {
+            if (id == FREE) {
+                if (currentContainsFree) {
+                    return true;
+                }
+            } else if (indexOf(current, currentShift, id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the home slot of an id.
+     * @param id the id
+     * @param tableShift the shift matching the table capacity
+     * @return the slot index
+     */
+    private static int slotOf(long id, int tableShift) {
+        return (int)((id * GOLDEN_RATIO) >>> tableShift);
+    }
+
+    /**
+     * Finds the slot holding an id. Gives up after one lap around the table,
+     * which can only happen when racing with a writer during an optimistic read.
+     * @param tableArray the table to search
+     * @param tableShift the shift matching the table capacity
+     * @param id the id, not {@link #FREE}
+     * @return the slot index, or -1 if not present
+     */
+    private static int indexOf(long[] tableArray, int tableShift, long id) {
+        int tableMask = tableArray.length - 1;
+        int slot = slotOf(id, tableShift) & tableMask;
+        for (int probes = 0; probes < tableArray.length; probes++) {
+            long value = tableArray[slot];
+            if (value == FREE) {
+                return -1;
+            }
+            if (value == id) {
+                return slot;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Stores an id in the table without resizing.
+     * @param id the id, not {@link #FREE}
+     * @return true if the id was not already present
+     */
+    private boolean insert(long id) {
+        int mask = table.length - 1;
+        int slot = slotOf(id, shift);
+        while (table[slot] != FREE) {
+            if (table[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id;
+        return true;
+    }
+
+    /**
+     * Frees a slot, shifting following entries of the probe sequence back
+     * so that lookups never stop early.
+     * @param slot the slot to free
+     */
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (table[next] != FREE) {
+            int home = slotOf(table[next], shift);
+            //Move the entry back unless its home slot lies cyclically in (free, next]
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                table[free] = table[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[free] = FREE;
+    }
+
+    /**
+     * Moves all entries to a new table.
+     * @param capacity the new capacity, a power of two
+     */
+    private void rehash(int capacity) {
+        long[] old = table;
+        allocate(capacity);
+        for (long id : old) {
+            if (id != FREE) {
+                insert(id);
+            }
+        }
+    }
+
+    /**
+     * Allocates an empty table.
+     * @param capacity the capacity, a power of two
+     */
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+    }
+}
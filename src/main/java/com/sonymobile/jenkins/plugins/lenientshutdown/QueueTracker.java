@@ -0,0 +1,580 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+
+/**
+ * Continuously tracks the items in the build queue, so that activating lenient
+ * shutdown does not have to lock and scan the queue.
+ * Each tracked item remembers once one of its upstream builds has finished, which
+ * is what decides if the item is permitted to build when lenient shutdown is activated.
+ * The tracker is seeded from the queue on first use and then kept current by
+ * {@link QueueListener} events, and by {@link ShutdownRunListener} for the upstream builds
+ * the items wait for. The ids of the permitted items are kept in sets, so activating lenient
+ * shutdown copies them instead of looking at every item.
+ * <p>
+ * While any lenient shutdown is active the tracker also maintains, per node, how many
+ * items only that node can build, so that checking if a node is needed is a map lookup.
+ * Items are re-classified lazily when the counters are read: those that changed since
+ * the last read, waiting items once an upstream build has completed, and all of them
+ * after node changes or a period without any lenient shutdown.
+ */
+final class QueueTracker {
+
+    private final Map<Long, TrackedItem> items = new ConcurrentHashMap<Long, TrackedItem>();
+
+    private volatile boolean seeded;
+
+    /**
+     * Ids of the items that one of their upstream builds has finished for, and of items that are
+     * not jobs and so never handled by the plugin.
+     */
+    private final Set<Long> permitted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Ids of the items of jobs that are not projects, which are only handled when all jobs are.
+     */
+    private final Set<Long> otherJobs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Items whose upstream build was not indexed when they were tracked, so it may have finished
+     * unnoticed. They are looked up when the permitted items are asked for.
+     */
+    private final Set<TrackedItem> unresolved = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Items by the external id of the upstream builds they wait for, guarded by itself.
+     */
+    private final Map<String, Set<TrackedItem>> awaitingByUpstream = new HashMap<String, Set<TrackedItem>>();
+
+    /**
+     * Items that have changed since the counters were last updated.
+     */
+    private final ConcurrentLinkedQueue<TrackedItem> changed = new ConcurrentLinkedQueue<TrackedItem>();
+
+    private volatile boolean countsValid;
+
+    private volatile boolean upstreamsChanged;
+
+    private final Object countLock = new Object();
+
+    //Guarded by countLock:
+    private long countGeneration;
+    private long countedNodeVersion = -1;
+    private int exclusiveToAllCount;
+    private final Map<String, Integer> exclusiveCounts = new HashMap<String, Integer>();
+    private final Set<TrackedItem> waitingItems = new HashSet<TrackedItem>();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    QueueTracker() { }
+
+    /**
+     * Gets the tracker of the running plugin.
+     * @return the tracker
+     */
+    private static QueueTracker get() {
+        return PluginImpl.getInstance().getQueueTracker();
+    }
+
+    /**
+     * Gets all tracked queue items.
+     * @return live view of the tracked items
+     */
+    static Collection<TrackedItem> getItems() {
+        QueueTracker tracker = get();
+        tracker.seedIfNeeded();
+        return Collections.unmodifiableCollection(tracker.items.values());
+    }
+
+    /**
+     * Returns the set of queue ids for items that would be permitted to build
+     * if lenient shutdown was activated now.
+     * @return set of item ids
+     * @see QueueUtils#getPermittedQueueItemIds()
+     */
+    static Set<Long> getPermittedQueueItemIds() {
+        QueueTracker tracker = get();
+        tracker.seedIfNeeded();
+        ShutdownConfiguration.Snapshot configuration = ShutdownConfiguration.getInstance().getSnapshot();
+        if (configuration.isAllowAllQueuedItems()) {
+            return Collections.unmodifiableSet(new HashSet<Long>(tracker.items.keySet()));
+        }
+        for (TrackedItem tracked : tracker.unresolved) {
+            tracker.resolve(tracked);
+        }
+        Set<Long> permittedIds = new HashSet<Long>(tracker.permitted);
+        if (!configuration.isAllowAllJobs()) {
+            permittedIds.addAll(tracker.otherJobs);
+        }
+        return Collections.unmodifiableSet(permittedIds);
+    }
+
+    /**
+     * Checks if there are any items in the queue that can only be built by the argument node.
+     * @param nodeName the name of the node
+     * @return true if the node is needed for some queued item, otherwise false
+     * @see QueueUtils#canOtherNodeBuild(Queue.Item, Node)
+     */
+    static boolean hasNodeExclusiveItem(String nodeName) {
+        QueueTracker tracker = get();
+        //Seed before taking countLock, seeding needs the queue lock
+        tracker.seedIfNeeded();
+        synchronized (tracker.countLock) {
+            tracker.updateCounts();
+            return tracker.exclusiveToAllCount > 0 || tracker.exclusiveCounts.containsKey(nodeName);
+        }
+    }
+
+    /**
+     * Notes that an upstream build has completed, which permits the items waiting for it
+     * and may bind waiting items to its node.
+     * @param run the completed build
+     */
+    static void upstreamCompleted(Run<?, ?> run) {
+        QueueTracker tracker = get();
+        tracker.upstreamsChanged = true;
+        Set<TrackedItem> awaiting;
+        synchronized (tracker.awaitingByUpstream) {
+            awaiting = tracker.awaitingByUpstream.remove(run.getExternalizableId());
+        }
+        if (awaiting == null) {
+            return;
+        }
+        for (TrackedItem tracked : awaiting) {
+            //Only abstract builds permit their downstream items, the others are resolved all the same
+            if (run instanceof AbstractBuild) {
+                tracker.markUpstreamFinished(tracked);
+            }
+            tracker.unresolved.remove(tracked);
+        }
+    }
+
+    /**
+     * Moves the items waiting for the builds of a renamed or moved job, or of the jobs in a
+     * renamed or moved folder, to the new external ids of the builds.
+     * @param oldFullName the old full name of the item
+     * @param newFullName the new full name of the item
+     */
+    static void locationChanged(String oldFullName, String newFullName) {
+        Map<String, Set<TrackedItem>> awaitingByUpstream = get().awaitingByUpstream;
+        synchronized (awaitingByUpstream) {
+            for (String upstreamId : new ArrayList<String>(awaitingByUpstream.keySet())) {
+                String movedId = UpstreamRunIndex.getMovedBuildId(upstreamId, oldFullName, newFullName);
+                if (movedId == null) {
+                    continue;
+                }
+                Set<TrackedItem> awaiting = awaitingByUpstream.remove(upstreamId);
+                for (TrackedItem tracked : awaiting) {
+                    tracked.upstreamIds.remove(upstreamId);
+                    tracked.upstreamIds.add(movedId);
+                }
+                Set<TrackedItem> existing = awaitingByUpstream.get(movedId);
+                if (existing == null) {
+                    awaitingByUpstream.put(movedId, awaiting);
+                } else {
+                    existing.addAll(awaiting);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all tracked items; they are seeded from the queue again on next use.
+     */
+    static void reset() {
+        QueueTracker tracker = get();
+        tracker.items.clear();
+        tracker.permitted.clear();
+        tracker.otherJobs.clear();
+        tracker.unresolved.clear();
+        synchronized (tracker.awaitingByUpstream) {
+            tracker.awaitingByUpstream.clear();
+        }
+        tracker.seeded = false;
+        tracker.countsValid = false;
+    }
+
+    /**
+     * Starts tracking an item or records its new state.
+     * @param item the queue item
+     */
+    private void update(Queue.Item item) {
+        TrackedItem tracked = items.get(item.getId());
+        if (tracked == null) {
+            tracked = new TrackedItem(item);
+            items.put(item.getId(), tracked);
+            classify(tracked);
+        } else {
+            tracked.item = item;
+        }
+        markDirty(tracked);
+    }
+
+    /**
+     * Stops tracking an item that has left the queue.
+     * @param id the queue id
+     */
+    private void remove(long id) {
+        TrackedItem tracked = items.remove(id);
+        if (tracked != null) {
+            tracked.left = true;
+            permitted.remove(id);
+            otherJobs.remove(id);
+            unresolved.remove(tracked);
+            synchronized (awaitingByUpstream) {
+                for (String upstreamId : tracked.upstreamIds) {
+                    Set<TrackedItem> awaiting = awaitingByUpstream.get(upstreamId);
+                    if (awaiting != null) {
+                        awaiting.remove(tracked);
+                        if (awaiting.isEmpty()) {
+                            awaitingByUpstream.remove(upstreamId);
+                        }
+                    }
+                }
+            }
+            markDirty(tracked);
+        }
+    }
+
+    /**
+     * Classifies a newly tracked item as permitted or not. Only builds that are already indexed
+     * are looked at, since this is called with the queue lock held; the item waits for the
+     * completion of the others.
+     * @param tracked the item
+     */
+    private void classify(TrackedItem tracked) {
+        Queue.Item current = tracked.item;
+        if (!(current.task instanceof Job)) {
+            permitted.add(tracked.id);
+            return;
+        }
+        if (!(current.task instanceof AbstractProject)) {
+            otherJobs.add(tracked.id);
+        }
+        for (Cause cause : current.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause)cause;
+                String upstreamId = QueueUtils.getUpstreamBuildId(upstreamCause);
+                //Wait before looking, so that a completion in between is not missed
+                synchronized (awaitingByUpstream) {
+                    tracked.upstreamIds.add(upstreamId);
+                    Set<TrackedItem> awaiting = awaitingByUpstream.get(upstreamId);
+                    if (awaiting == null) {
+                        awaiting = new HashSet<TrackedItem>();
+                        awaitingByUpstream.put(upstreamId, awaiting);
+                    }
+                    awaiting.add(tracked);
+                }
+                UpstreamRunIndex.Entry upstream = UpstreamRunIndex.peek(upstreamCause);
+                if (upstream == null) {
+                    unresolved.add(tracked);
+                } else if (upstream.isAbstractBuild() && !upstream.isBuilding()) {
+                    markUpstreamFinished(tracked);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the upstream builds of an item whose upstream builds were not indexed when it was
+     * tracked. This may load builds from disk, so it is only done when the permitted items are
+     * asked for, and only once per item; later completions are seen through
+     * {@link #upstreamCompleted(Run)}.
+     * @param tracked the item
+     */
+    private void resolve(TrackedItem tracked) {
+        if (unresolved.remove(tracked) && QueueUtils.hasFinishedUpstreamBuild(tracked.item, null)) {
+            markUpstreamFinished(tracked);
+        }
+    }
+
+    /**
+     * Marks an item as permitted because one of its upstream builds has finished.
+     * @param tracked the item
+     */
+    private void markUpstreamFinished(TrackedItem tracked) {
+        tracked.upstreamFinished = true;
+        permitted.add(tracked.id);
+        if (tracked.left) {
+            //Left the queue meanwhile, do not keep its id
+            permitted.remove(tracked.id);
+        }
+        unresolved.remove(tracked);
+    }
+
+    /**
+     * Queues an item for re-classification. While nothing is draining the counters
+     * are not maintained at all; they are rebuilt on the next read instead.
+     * @param tracked the changed item
+     */
+    private void markDirty(TrackedItem tracked) {
+        if (DrainActivity.isIdle()) {
+            countsValid = false;
+        } else if (tracked.dirty.compareAndSet(false, true)) {
+            changed.add(tracked);
+        }
+    }
+
+    /**
+     * Brings the per node counters up to date. Called with countLock held.
+     */
+    private void updateCounts() {
+        long nodeVersion = NodeCandidateIndex.getVersion();
+        if (!countsValid || nodeVersion != countedNodeVersion) {
+            //Set first, so that changes made while rebuilding are not lost
+            countsValid = true;
+            upstreamsChanged = false;
+            countedNodeVersion = nodeVersion;
+            countGeneration++;
+            exclusiveToAllCount = 0;
+            exclusiveCounts.clear();
+            waitingItems.clear();
+            changed.clear();
+            for (TrackedItem tracked : items.values()) {
+                tracked.dirty.set(false);
+                count(tracked);
+            }
+            return;
+        }
+        if (upstreamsChanged) {
+            upstreamsChanged = false;
+            for (TrackedItem tracked : waitingItems) {
+                if (tracked.dirty.compareAndSet(false, true)) {
+                    changed.add(tracked);
+                }
+            }
+        }
+        for (TrackedItem tracked = changed.poll(); tracked != null; tracked = changed.poll()) {
+            tracked.dirty.set(false);
+            uncount(tracked);
+            if (!tracked.left) {
+                count(tracked);
+            }
+        }
+    }
+
+    /**
+     * Classifies an item and adds it to the counters. Called with countLock held.
+     * @param tracked the item
+     */
+    private void count(TrackedItem tracked) {
+        Queue.Item current = tracked.item;
+        tracked.countedAll = false;
+        tracked.countedNodes = Collections.emptySet();
+        tracked.countedGeneration = countGeneration;
+        if (current instanceof Queue.BuildableItem) {
+            //Only nodes not shutting down are candidates, so if none can build the item every
+            //node shutting down is needed for it, and if only one can that node is needed
+            List<Node> ableNodes = QueueUtils.getNodesAbleToBuild((Queue.BuildableItem)current, 2);
+            if (ableNodes.isEmpty()) {
+                tracked.countedAll = true;
+            } else if (ableNodes.size() == 1) {
+                tracked.countedNodes = Collections.singleton(ableNodes.get(0).getNodeName());
+            }
+        } else if (current instanceof Queue.WaitingItem) {
+            tracked.countedNodes = QueueUtils.getFinishedUpstreamNodeNames(current);
+            waitingItems.add(tracked);
+        } else {
+            //Blocked items cannot be checked against other nodes
+            tracked.countedAll = true;
+        }
+        if (tracked.countedAll) {
+            exclusiveToAllCount++;
+        }
+        for (String nodeName : tracked.countedNodes) {
+            Integer count = exclusiveCounts.get(nodeName);
+            if (count == null) {
+                exclusiveCounts.put(nodeName, 1);
+            } else {
+                exclusiveCounts.put(nodeName, count + 1);
+            }
+        }
+    }
+
+    /**
+     * Removes an item from the counters. Called with countLock held.
+     * @param tracked the item
+     */
+    private void uncount(TrackedItem tracked) {
+        waitingItems.remove(tracked);
+        if (tracked.countedGeneration != countGeneration) {
+            //Counted before the last rebuild, which already dropped it
+            return;
+        }
+        if (tracked.countedAll) {
+            exclusiveToAllCount--;
+        }
+        for (String nodeName : tracked.countedNodes) {
+            Integer count = exclusiveCounts.get(nodeName);
+            if (count == null || count <= 1) {
+                exclusiveCounts.remove(nodeName);
+            } else {
+                exclusiveCounts.put(nodeName, count - 1);
+            }
+        }
+        tracked.countedAll = false;
+        tracked.countedNodes = Collections.emptySet();
+    }
+
+    /**
+     * Seeds the tracker with the items already in the queue, under the queue
+     * lock so no listener events interleave.
+     * The queue is read as the system, since it only lists the items the caller can read
+     * and the first caller may be any user.
+     */
+    private void seedIfNeeded() {
+        if (seeded) {
+            return;
+        }
+        Queue.withLock(new Runnable() {
+            @Override
+            public void run() {
+                if (!seeded) {
+                    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                        for (Queue.Item item : Queue.getInstance().getItems()) {
+                            update(item);
+                        }
+                    }
+                    seeded = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * A queue item as seen by the tracker.
+     */
+    static final class TrackedItem {
+        private final long id;
+        private volatile Queue.Item item;
+        private volatile boolean upstreamFinished;
+        private volatile boolean left;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        /**
+         * External ids of the upstream builds, set when the item is first tracked. Guarded by awaitingByUpstream.
+         */
+        private final List<String> upstreamIds = new ArrayList<String>(1);
+
+        //Guarded by countLock:
+        private long countedGeneration = -1;
+        private boolean countedAll;
+        private Set<String> countedNodes = Collections.emptySet();
+
+        /**
+         * Constructor.
+         * @param item the queue item
+         */
+        private TrackedItem(Queue.Item item) {
+            this.id = item.getId();
+            this.item = item;
+        }
+
+        /**
+         * Gets the queue id.
+         * @return the queue id
+         */
+        long getId() {
+            return id;
+        }
+
+        /**
+         * Gets the latest state of the queue item.
+         * @return the queue item
+         */
+        Queue.Item getItem() {
+            return item;
+        }
+
+        /**
+         * Checks if the item is permitted to build when lenient shutdown is activated:
+         * either it is not handled by the plugin, all queued items are allowed
+         * or one of its upstream builds has finished.
+         * @param allowAllQueuedItems true if all queued items are allowed
+         * @return true if permitted, otherwise false
+         */
+        boolean isPermitted(boolean allowAllQueuedItems) {
+            if (allowAllQueuedItems || !QueueUtils.isApplicable(item.task)) {
+                return true;
+            }
+            if (!upstreamFinished) {
+                get().resolve(this);
+            }
+            return upstreamFinished;
+        }
+    }
+
+    /**
+     * Keeps the tracked items current.
+     */
+    @Extension
+    public static class Listener extends QueueListener {
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            get().update(wi);
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            get().update(bi);
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            get().update(bi);
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            get().remove(li.getId());
+        }
+    }
+}
@@ -26,21 +26,25 @@
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Cause;
 import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.Queue.BuildableItem;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import jenkins.model.Jenkins;
 
 /**
@@ -59,29 +63,11 @@ public final class QueueUtils {
      * Returns the set of queue ids for items that are in the build queue.
      * Depending on the configuration this is either just those that have a completed upstream
      * project if they are a project build or all entries that are currently in the queue.
-     * Note: This method locks the queue; don't use excessively.
+     * The items are taken from the {@link QueueTracker}, so the queue is not locked.
      * @return set of item ids
      */
     public static Set<Long> getPermittedQueueItemIds() {
-        Set<Long> queuedIds = new HashSet<Long>();
-        boolean allowAllQueuedItems = ShutdownConfiguration.getInstance().isAllowAllQueuedItems();
-        for (Queue.Item item : Queue.getInstance().getItems()) {
-            if (isApplicable(item.task)) {
-                if (allowAllQueuedItems) {
-                    queuedIds.add(item.getId());
-                } else {
-                    for (AbstractBuild upstreamBuild : getUpstreamBuilds(item)) {
-                        if (!upstreamBuild.isBuilding()) {
-                            queuedIds.add(item.getId());
-                            break;
-                        }
-                    }
-                }
-            } else {
-                queuedIds.add(item.getId());
-            }
-        }
-        return Collections.unmodifiableSet(queuedIds);
+        return QueueTracker.getPermittedQueueItemIds();
     }
 
     /**
@@ -94,7 +80,7 @@ public final class QueueUtils {
      * @return true if applicable, false otherwise
      */
     public static boolean isApplicable(Queue.Task task) {
-        if (ShutdownConfiguration.getInstance().isAllowAllJobs()) {
+        if (ShutdownConfiguration.getInstance().getSnapshot().isAllowAllJobs()) {
             return task instanceof Job;
         }
         return task instanceof AbstractProject;
@@ -103,7 +89,7 @@ public final class QueueUtils {
     /**
      * Returns a set of queued item ids that are bound to a specific node
      * and should be permitted to build since they have a completed upstream project.
-     * Note: This method locks the queue; don't use excessively.
+     * The items are taken from the {@link QueueTracker}, so the queue is not locked.
      * @param nodeName the node name to check allowed ids for
      * @return set of permitted item ids
      */
@@ -112,41 +98,83 @@ public final class QueueUtils {
         if (nodeName == null) {
             permittedQueueItemIds.addAll(getPermittedQueueItemIds());
         } else {
-            Queue queueInstance = Queue.getInstance();
+            Set<Long> nodePermittedIds = getPermittedQueueItemIds(Collections.singleton(nodeName)).get(nodeName);
+            if (nodePermittedIds != null) {
+                permittedQueueItemIds.addAll(nodePermittedIds);
+            }
+        }
+
+        return Collections.unmodifiableSet(permittedQueueItemIds);
+    }
 
+    /**
+     * Returns, for each of the argument nodes, the queued item ids that are bound to
+     * that node and should be permitted to build, as {@link #getPermittedQueueItemIds(String)}.
+     * The tracked items are walked once for all nodes, split across the threads
+     * of the {@link ParallelAnalysis} if a parallelism is configured.
+     * @param nodeNames the node names to check allowed ids for
+     * @return map of node name to set of permitted item ids; nodes that do not exist are left out
+     */
+    static Map<String, Set<Long>> getPermittedQueueItemIds(Collection<String> nodeNames) {
+        final Map<String, Node> nodes = new HashMap<String, Node>();
+        Map<String, Set<Long>> permittedQueueItemIds = new HashMap<String, Set<Long>>();
+        for (String nodeName : nodeNames) {
             Node node = Jenkins.get().getNode(nodeName);
             if (nodeName.isEmpty()) { // Special case when building on master
                 node = Jenkins.get();
             }
-
             if (node != null) {
-                for (long id : getPermittedQueueItemIds()) {
-                    Queue.Item item = queueInstance.getItem(id);
-                    if (item != null && !canOtherNodeBuild(item, node)) {
-                        permittedQueueItemIds.add(id);
+                nodes.put(nodeName, node);
+                permittedQueueItemIds.put(nodeName, new HashSet<Long>());
+            }
+        }
+
+        if (!nodes.isEmpty()) {
+            final boolean allowAllQueuedItems =
+                    ShutdownConfiguration.getInstance().getSnapshot().isAllowAllQueuedItems();
+            List<QueueTracker.TrackedItem> items = new ArrayList<QueueTracker.TrackedItem>(QueueTracker.getItems());
+            ParallelAnalysis.Collector<QueueTracker.TrackedItem> collector =
+                    new ParallelAnalysis.Collector<QueueTracker.TrackedItem>() {
+                @Override
+                public void collect(List<QueueTracker.TrackedItem> chunk, int from, int to,
+                                    Map<String, Set<Long>> permitted) {
+                    //May run on a pool thread, which has no security context of its own
+                    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                        for (int i = from; i < to; i++) {
+                            QueueTracker.TrackedItem tracked = chunk.get(i);
+                            if (!tracked.isPermitted(allowAllQueuedItems)) {
+                                continue;
+                            }
+                            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                                if (!canOtherNodeBuild(tracked.getItem(), entry.getValue())) {
+                                    Set<Long> ids = permitted.get(entry.getKey());
+                                    if (ids == null) {
+                                        ids = new HashSet<Long>();
+                                        permitted.put(entry.getKey(), ids);
+                                    }
+                                    ids.add(tracked.getId());
+                                }
+                            }
+                        }
                     }
                 }
+            };
+            Map<String, Set<Long>> found = ParallelAnalysis.getShared().collect(items, collector);
+            for (Map.Entry<String, Set<Long>> entry : found.entrySet()) {
+                permittedQueueItemIds.get(entry.getKey()).addAll(entry.getValue());
             }
         }
-
-        return Collections.unmodifiableSet(permittedQueueItemIds);
+        return permittedQueueItemIds;
     }
 
     /**
      * Return a set of queue ids of all currently running builds.
+     * The builds are taken from the {@link RunningWork} registry, so executors are not scanned.
      *
      * @return set of running queue ids
      */
     public static Set<Long> getRunningProjectQueueIds() {
-        Set<Long> runningProjects = new HashSet<Long>();
-
-        List<Node> allNodes = new ArrayList<Node>(Jenkins.get().getNodes());
-        allNodes.add(Jenkins.get());
-
-        for (Node node : allNodes) {
-            runningProjects.addAll(getRunninProjectsQueueIDs(node.getNodeName()));
-        }
-        return Collections.unmodifiableSet(runningProjects);
+        return RunningWork.getRunningQueueIds();
     }
 
     /**
@@ -156,30 +184,18 @@ public final class QueueUtils {
      * @return set of queue ids
      */
     public static Set<Long> getRunninProjectsQueueIDs(String nodeName) {
-        Set<Long> runningProjects = new HashSet<Long>();
-
-        Node node = Jenkins.get().getNode(nodeName);
-        if (nodeName.isEmpty()) { // Special case when building on master
-            node = Jenkins.get();
-        }
-
-        if (node != null) {
-            Computer computer = node.toComputer();
-            if (computer != null) {
-                List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
-                executors.addAll(computer.getOneOffExecutors());
-
-                for (Executor executor : executors) {
-                    Queue.Executable executable = executor.getCurrentExecutable();
-                    if (executable instanceof AbstractBuild) {
-                        AbstractBuild build = (AbstractBuild)executable;
-                        runningProjects.add(build.getQueueId());
-                    }
-                }
-            }
-        }
+        return new HashSet<Long>(RunningWork.getRunningQueueIds(nodeName));
+    }
 
-        return Collections.unmodifiableSet(runningProjects);
+    /**
+     * Gets the external id of the upstream build of a cause, in the form of
+     * {@link Run#getExternalizableId()}, without resolving the build.
+     * The current name of the upstream job is used if it was renamed or moved since.
+     * @param cause the upstream cause
+     * @return the external id
+     */
+    static String getUpstreamBuildId(Cause.UpstreamCause cause) {
+        return UpstreamRunIndex.getCurrentName(cause.getUpstreamProject()) + "#" + cause.getUpstreamBuild();
     }
 
     /**
@@ -191,18 +207,75 @@ public final class QueueUtils {
         Set<Long> upstreamProjects = new HashSet<Long>();
         for (Cause cause : item.getCauses()) {
             if (cause instanceof Cause.UpstreamCause) {
-                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause)cause;
-                Run<?, ?> run = upstreamCause.getUpstreamRun();
-                if (run != null) {
-                    upstreamProjects.add(run.getQueueId());
+                UpstreamRunIndex.Entry upstream = UpstreamRunIndex.lookup((Cause.UpstreamCause)cause);
+                if (upstream != null) {
+                    upstreamProjects.add(upstream.getQueueId());
                 }
             }
         }
         return Collections.unmodifiableSet(upstreamProjects);
     }
 
+    /**
+     * Gets the queue ids of all upstream projects that triggered argument queue item,
+     * as a primitive array suitable for {@link QueueIdSet#containsAny(long[])}.
+     * @param item the queue item to find upstream projects for
+     * @return array of distinct upstream queue ids
+     */
+    static long[] getUpstreamQueueIdArray(Queue.Item item) {
+        Set<Long> upstreamQueueIds = getUpstreamQueueIds(item);
+        long[] ids = new long[upstreamQueueIds.size()];
+        int i = 0;
+        for (long id : upstreamQueueIds) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Checks if any upstream build that triggered argument queue item has finished.
+     * Only {@link AbstractBuild}s are considered. Uses the {@link UpstreamRunIndex},
+     * so upstream builds are not loaded from disk again.
+     * @param item the queue item to check upstream builds for
+     * @param nodeName if not null, only upstream builds that ran on this node are considered
+     * @return true if a finished upstream build was found, otherwise false
+     */
+    static boolean hasFinishedUpstreamBuild(Queue.Item item, String nodeName) {
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                UpstreamRunIndex.Entry upstream = UpstreamRunIndex.lookup((Cause.UpstreamCause)cause);
+                if (upstream != null && upstream.isAbstractBuild() && !upstream.isBuilding()
+                        && (nodeName == null || upstream.isBuiltOn(nodeName))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the names of the nodes that finished upstream builds of argument queue item ran on.
+     * Only {@link AbstractBuild}s are considered.
+     * @param item the queue item to check upstream builds for
+     * @return set of node names
+     */
+    static Set<String> getFinishedUpstreamNodeNames(Queue.Item item) {
+        Set<String> nodeNames = new HashSet<String>();
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                UpstreamRunIndex.Entry upstream = UpstreamRunIndex.lookup((Cause.UpstreamCause)cause);
+                if (upstream != null && upstream.isAbstractBuild() && !upstream.isBuilding()
+                        && upstream.getBuiltOn() != null) {
+                    nodeNames.add(upstream.getBuiltOn());
+                }
+            }
+        }
+        return nodeNames;
+    }
+
     /**
      * Gets all upstream builds that triggered argument queue item.
+     * Note: This may load the upstream builds from disk.
      * @param item the queue item to find upstream builds for
      * @return set of upstream builds
      */
@@ -223,7 +296,7 @@ public final class QueueUtils {
 
     /**
      * Checks if there are any online nodes other than the argument node
-     * that can build the item.
+     * that can build the item. Nodes that are shutting down leniently are not counted.
      * @param item the item to build
      * @param node the node to exclude in the search
      * @return true if any other available nodes were found, otherwise false
@@ -234,70 +307,58 @@ public final class QueueUtils {
         if (item instanceof BuildableItem) {
             // Item is ready to build, we can make a full check if other slaves can build it.
             BuildableItem buildableItem = (BuildableItem)item;
-            Set<Node> allNodes = new HashSet<Node>(Jenkins.get().getNodes());
-            allNodes.add(Jenkins.get());
-
-            for (Node otherNode : allNodes) {
-                Computer otherComputer = otherNode.toComputer();
-                if (otherComputer != null && otherComputer.isOnline() && !otherNode.equals(node)
-                        && otherNode.canTake(buildableItem) == null) {
-                    otherNodeCanBuild = true;
-                    break;
-                }
-            }
+            otherNodeCanBuild = DispatchCache.forItem(buildableItem).canOtherNodeBuild(buildableItem, node);
         } else if (item instanceof Queue.WaitingItem) {
             //Item is in quiet period. We can't make a full check if other nodes can build,
             //instead we check if its upstream was built on the argument node and it that case
             //return false.
-            otherNodeCanBuild = true;
-            for (AbstractBuild upstreamBuild : getUpstreamBuilds(item)) {
-                boolean isUpstreamFinished = !upstreamBuild.isBuilding();
-                if (isUpstreamFinished && upstreamBuild.getBuiltOnStr().equals(node.getNodeName())) {
-                    otherNodeCanBuild = false;
+            otherNodeCanBuild = !hasFinishedUpstreamBuild(item, node.getNodeName());
+        }
+        return otherNodeCanBuild;
+    }
+
+    /**
+     * Finds online nodes, not shutting down leniently, that can take the argument item.
+     * @param item the item to build
+     * @param limit the maximum number of nodes to look for
+     * @return unmodifiable list of at most limit nodes
+     */
+    static List<Node> getNodesAbleToBuild(BuildableItem item, int limit) {
+        List<Node> ableNodes = new ArrayList<Node>(limit);
+        for (Node candidate : NodeCandidateIndex.getCandidates(item.getAssignedLabel())) {
+            if (candidate.canTake(item) == null) {
+                ableNodes.add(candidate);
+                if (ableNodes.size() >= limit) {
                     break;
                 }
             }
         }
-        return otherNodeCanBuild;
+        return Collections.unmodifiableList(ableNodes);
     }
 
     /**
      * Checks if argument computer is currently building something.
+     * The busy executors are taken from the {@link RunningWork} registry.
      * @param computer the computer to check for
      * @return true if computer is building, otherwise false
      */
     public static boolean isBuilding(Computer computer) {
-        boolean isBuilding = false;
-        List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
-        executors.addAll(computer.getOneOffExecutors());
-
-        for (Executor executor : executors) {
-            if (executor.isBusy()) {
-                isBuilding = true;
-                break;
-            }
-        }
-
-        return isBuilding;
+        return RunningWork.isBuilding(computer);
     }
 
     /**
      * Checks if there are any builds in queue that can only be built
      * by the argument computer.
-     * Note: This method locks the queue; don't use excessively.
+     * Reads the per node counters maintained by the {@link QueueTracker},
+     * so the queue is neither locked nor scanned.
      * @param computer the computer to check assignment for
      * @return true if there are builds that can only be build by argument computer, otherwise false
      */
     public static boolean hasNodeExclusiveItemInQueue(Computer computer) {
-        boolean hasExclusive = false;
-        Queue.Item[] queueItems = Queue.getInstance().getItems();
-
-        for (Queue.Item item : queueItems) {
-            if (!canOtherNodeBuild(item, computer.getNode())) {
-                hasExclusive = true;
-                break;
-            }
+        Node node = computer.getNode();
+        if (node == null) {
+            return false;
         }
-        return hasExclusive;
+        return QueueTracker.hasNodeExclusiveItem(node.getNodeName());
     }
  }
@@ -0,0 +1,332 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps track of the busy executors and running builds of every computer, so that
+ * checking if a node is building or listing running queue ids does not have to walk
+ * all executors in the system.
+ * <p>
+ * Busy executors are updated from {@link ExecutorListener} events and running builds
+ * from {@link ShutdownRunListener}. The registry is seeded from the executors on first
+ * use, and entries that went stale in the meantime are dropped when they are read.
+ */
+final class RunningWork {
+
+    /**
+     * Node name -> busy executors and running builds on that node.
+     */
+    private final Map<String, NodeWork> nodes = new ConcurrentHashMap<String, NodeWork>();
+
+    /**
+     * Queue id -> running build, for all nodes.
+     */
+    private final Map<Long, Run<?, ?>> running = new ConcurrentHashMap<Long, Run<?, ?>>();
+
+    private volatile boolean seeded;
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    RunningWork() { }
+
+    /**
+     * Gets the registry of the running plugin, seeded from the executors on first use.
+     * @return the registry
+     */
+    private static RunningWork get() {
+        RunningWork registry = PluginImpl.getInstance().getRunningWork();
+        registry.seedIfNeeded();
+        return registry;
+    }
+
+    /**
+     * Checks if argument computer has any busy executor.
+     * @param computer the computer to check for
+     * @return true if computer is building, otherwise false
+     */
+    static boolean isBuilding(Computer computer) {
+        NodeWork work = get().nodes.get(computer.getName());
+        if (work == null) {
+            return false;
+        }
+        Iterator<Executor> executors = work.busyExecutors.iterator();
+        while (executors.hasNext()) {
+            if (executors.next().isBusy()) {
+                return true;
+            }
+            executors.remove();
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of busy executors of argument node.
+     * @param nodeName the node name, empty for the built-in node
+     * @return the number of busy executors
+     */
+    static int getBusyExecutorCount(String nodeName) {
+        NodeWork work = get().nodes.get(nodeName);
+        if (work == null) {
+            return 0;
+        }
+        int count = 0;
+        Iterator<Executor> executors = work.busyExecutors.iterator();
+        while (executors.hasNext()) {
+            if (executors.next().isBusy()) {
+                count++;
+            } else {
+                executors.remove();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the queue ids of the builds running on argument node.
+     * @param nodeName the node name, empty for the built-in node
+     * @return set of queue ids
+     */
+    static Set<Long> getRunningQueueIds(String nodeName) {
+        NodeWork work = get().nodes.get(nodeName);
+        if (work == null) {
+            return Collections.emptySet();
+        }
+        return getRunningQueueIds(work.runningBuilds);
+    }
+
+    /**
+     * Gets the queue ids of all running builds.
+     * @return set of queue ids
+     */
+    static Set<Long> getRunningQueueIds() {
+        return getRunningQueueIds(get().running);
+    }
+
+    /**
+     * Gets all running builds.
+     * @return list of running builds
+     */
+    static List<Run<?, ?>> getRunningBuilds() {
+        List<Run<?, ?>> runs = new ArrayList<Run<?, ?>>();
+        for (Run<?, ?> run : get().running.values()) {
+            if (run.isLogUpdated()) {
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Records a started build.
+     * @param run the build
+     */
+    static void started(Run<?, ?> run) {
+        PluginImpl.getInstance().getRunningWork().record(run);
+    }
+
+    /**
+     * Forgets a finalized build.
+     * @param run the build
+     */
+    static void finalized(Run<?, ?> run) {
+        RunningWork registry = PluginImpl.getInstance().getRunningWork();
+        if (registry.running.remove(run.getQueueId()) == null) {
+            return;
+        }
+        for (NodeWork work : registry.nodes.values()) {
+            if (work.runningBuilds.remove(run.getQueueId()) != null) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything; the registry is seeded from the executors again on next use.
+     */
+    static void reset() {
+        RunningWork registry = PluginImpl.getInstance().getRunningWork();
+        synchronized (registry) {
+            registry.nodes.clear();
+            registry.running.clear();
+            registry.seeded = false;
+        }
+    }
+
+    /**
+     * Records a started build.
+     * @param run the build
+     */
+    private void record(Run<?, ?> run) {
+        if (!(run instanceof AbstractBuild)) {
+            return;
+        }
+        Executor executor = run.getExecutor();
+        if (executor == null) {
+            return;
+        }
+        String nodeName = executor.getOwner().getName();
+        getNodeWork(nodeName).runningBuilds.put(run.getQueueId(), run);
+        running.put(run.getQueueId(), run);
+    }
+
+    /**
+     * Gets the queue ids of the running builds in argument map, dropping builds that have finished.
+     * @param runningBuilds queue id -> running build
+     * @return set of queue ids
+     */
+    private static Set<Long> getRunningQueueIds(Map<Long, Run<?, ?>> runningBuilds) {
+        Set<Long> queueIds = new HashSet<Long>();
+        Iterator<Map.Entry<Long, Run<?, ?>>> entries = runningBuilds.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, Run<?, ?>> entry = entries.next();
+            if (entry.getValue().isLogUpdated()) {
+                queueIds.add(entry.getKey());
+            } else {
+                entries.remove();
+            }
+        }
+        return Collections.unmodifiableSet(queueIds);
+    }
+
+    /**
+     * Gets the work of argument node, creating it if needed.
+     * @param nodeName the node name
+     * @return the node work
+     */
+    private NodeWork getNodeWork(String nodeName) {
+        NodeWork work = nodes.get(nodeName);
+        if (work == null) {
+            work = new NodeWork();
+            NodeWork existing = nodes.putIfAbsent(nodeName, work);
+            if (existing != null) {
+                work = existing;
+            }
+        }
+        return work;
+    }
+
+    /**
+     * Records the executors that are busy when the registry is first used.
+     */
+    private void seedIfNeeded() {
+        if (seeded) {
+            return;
+        }
+        synchronized (this) {
+            if (!seeded) {
+                seed();
+            }
+        }
+    }
+
+    /**
+     * Records the executors that are busy and the builds that are running. Called with this locked.
+     */
+    private void seed() {
+        List<Computer> computers = new ArrayList<Computer>();
+        Collections.addAll(computers, Jenkins.get().getComputers());
+        for (Computer computer : computers) {
+            List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor : executors) {
+                if (executor.isBusy()) {
+                    getNodeWork(computer.getName()).busyExecutors.add(executor);
+                }
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof AbstractBuild) {
+                    record((AbstractBuild<?, ?>)executable);
+                }
+            }
+        }
+        seeded = true;
+    }
+
+    /**
+     * The busy executors and running builds of one node.
+     */
+    private static final class NodeWork {
+        private final Set<Executor> busyExecutors = Collections.newSetFromMap(
+                new ConcurrentHashMap<Executor, Boolean>());
+        private final Map<Long, Run<?, ?>> runningBuilds = new ConcurrentHashMap<Long, Run<?, ?>>();
+    }
+
+    /**
+     * Keeps the busy executors up to date and requests idle checks when executors finish.
+     */
+    @Extension
+    public static class ExecutorWatcher implements ExecutorListener {
+
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            PluginImpl.getInstance().getRunningWork().getNodeWork(executor.getOwner().getName())
+                    .busyExecutors.add(executor);
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            finished(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS,
+                                              Throwable problems) {
+            finished(executor);
+        }
+
+        /**
+         * Records that argument executor is done with its task.
+         * @param executor the executor
+         */
+        private void finished(Executor executor) {
+            Computer computer = executor.getOwner();
+            NodeWork work = PluginImpl.getInstance().getRunningWork().nodes.get(computer.getName());
+            if (work != null) {
+                work.busyExecutors.remove(executor);
+            }
+            if (DrainActivity.isAnyNodeDraining()) {
+                NodeIdleCheck.request(computer);
+            }
+        }
+    }
+}
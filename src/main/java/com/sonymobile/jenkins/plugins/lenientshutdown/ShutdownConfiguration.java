@@ -24,21 +24,32 @@
 
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
+import java.util.AbstractSet;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
 import jenkins.model.GlobalConfiguration;
 import net.sf.json.JSONObject;
 
 /**
  * The global configuration of the plugin.
+ * <p>
+ * Every change is published as an immutable {@link Snapshot}, which is what the getters and the
+ * queue dispatcher read, so a reader never sees a change that is only partly applied.
  *
  */
 @Extension
@@ -46,6 +57,11 @@ public class ShutdownConfiguration extends GlobalConfiguration {
 
     private static final String DELIMETER = "\\r?\\n";
 
+    /**
+     * The registered instance, resolved once the extensions are loaded and forgotten when Jenkins terminates.
+     */
+    private static volatile ShutdownConfiguration instance;
+
     /**
      * Defines the default shutdown message to be displayed in header.
      */
@@ -57,11 +73,25 @@ public class ShutdownConfiguration extends GlobalConfiguration {
 
     private boolean allowAllJobs;
 
+    private boolean precomputeDownstreamClosure;
+
+    /**
+     * Minutes after activation by which lenient shutdown should be done, 0 for no deadline.
+     */
+    private int drainDeadlineMinutes;
+
+    private boolean longestChainFirst;
+
     /**
      * A list of projects that are allowed to run in case allowWhiteListedProjects is enabled.
      */
     private Set<String> whiteListedProjects = Collections.synchronizedSet(new TreeSet<String>());
 
+    /**
+     * The settings above as last published.
+     */
+    private transient volatile Snapshot snapshot;
+
     /**
      * Constructor, loads persisted configuration.
      */
@@ -74,13 +104,31 @@ public class ShutdownConfiguration extends GlobalConfiguration {
         load();
     }
 
+    /**
+     * Loads the persisted configuration and publishes it.
+     */
+    @Override
+    public synchronized void load() {
+        super.load();
+        publish();
+    }
+
+    /**
+     * Gets the current settings as one consistent, immutable snapshot.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Checks if all queued items are allowed to build in lenient shutdown mode.
      *
      * @return true if all queued itmes will build, false otherwise
      */
     public boolean isAllowAllQueuedItems() {
-        return allowAllQueuedItems;
+        return snapshot.isAllowAllQueuedItems();
     }
 
     /**
@@ -89,7 +137,7 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @return true if white listed projects will build, false otherwise
      */
     public boolean isAllowWhiteListedProjects() {
-        return allowWhiteListedProjects;
+        return snapshot.isAllowWhiteListedProjects();
     }
 
     /**
@@ -98,7 +146,38 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @return true if white listed projects will build, false otherwise
      */
     public boolean isAllowAllJobs() {
-        return allowAllJobs;
+        return snapshot.isAllowAllJobs();
+    }
+
+    /**
+     * Checks if the downstream projects of running and permitted projects are computed
+     * from the dependency graph when lenient shutdown is activated.
+     *
+     * @return true if the downstream closure is precomputed, false otherwise
+     */
+    public boolean isPrecomputeDownstreamClosure() {
+        return snapshot.isPrecomputeDownstreamClosure();
+    }
+
+    /**
+     * Gets the number of minutes after activation by which lenient shutdown should be done.
+     * Items that are not expected to finish by then are not allowed to start.
+     *
+     * @return the number of minutes, 0 if there is no deadline
+     */
+    public int getDrainDeadlineMinutes() {
+        return snapshot.getDrainDeadlineMinutes();
+    }
+
+    /**
+     * Checks if the permitted builds are ordered so that lenient shutdown is done sooner:
+     * builds starting the longest chains of downstream builds first, shorter builds first
+     * among equal chains.
+     *
+     * @return true if permitted builds are ordered, false otherwise
+     */
+    public boolean isLongestChainFirst() {
+        return snapshot.isLongestChainFirst();
     }
 
     /**
@@ -106,8 +185,9 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      *
      * @param allowAllQueuedItems true - enabled, false - disabled
      */
-    public void setAllowAllQueuedItems(boolean allowAllQueuedItems) {
+    public synchronized void setAllowAllQueuedItems(boolean allowAllQueuedItems) {
         this.allowAllQueuedItems = allowAllQueuedItems;
+        publish();
     }
 
     /**
@@ -115,8 +195,9 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      *
      * @param allowWhiteListedProjects true - enabled, false - disabled
      */
-    public void setAllowWhiteListedProjects(boolean allowWhiteListedProjects) {
+    public synchronized void setAllowWhiteListedProjects(boolean allowWhiteListedProjects) {
         this.allowWhiteListedProjects = allowWhiteListedProjects;
+        publish();
     }
 
     /**
@@ -124,8 +205,39 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      *
      * @param allowAllJobs true - enabled, false - disabled
      */
-    public void setAllowAllJobs(boolean allowAllJobs) {
+    public synchronized void setAllowAllJobs(boolean allowAllJobs) {
         this.allowAllJobs = allowAllJobs;
+        publish();
+    }
+
+    /**
+     * Sets the flag if the downstream closure is precomputed or not.
+     *
+     * @param precomputeDownstreamClosure true - enabled, false - disabled
+     */
+    public synchronized void setPrecomputeDownstreamClosure(boolean precomputeDownstreamClosure) {
+        this.precomputeDownstreamClosure = precomputeDownstreamClosure;
+        publish();
+    }
+
+    /**
+     * Sets the number of minutes after activation by which lenient shutdown should be done.
+     *
+     * @param drainDeadlineMinutes the number of minutes, 0 for no deadline
+     */
+    public synchronized void setDrainDeadlineMinutes(int drainDeadlineMinutes) {
+        this.drainDeadlineMinutes = Math.max(drainDeadlineMinutes, 0);
+        publish();
+    }
+
+    /**
+     * Sets the flag if permitted builds are ordered so that lenient shutdown is done sooner.
+     *
+     * @param longestChainFirst true - enabled, false - disabled
+     */
+    public synchronized void setLongestChainFirst(boolean longestChainFirst) {
+        this.longestChainFirst = longestChainFirst;
+        publish();
     }
 
 
@@ -135,7 +247,7 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @return message to display in header
      */
     public String getShutdownMessage() {
-        return shutdownMessage;
+        return snapshot.getShutdownMessage();
     }
 
     /**
@@ -143,8 +255,9 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      *
      * @param shutdownMessage message to display in header
      */
-    public void setShutdownMessage(String shutdownMessage) {
+    public synchronized void setShutdownMessage(String shutdownMessage) {
         this.shutdownMessage = shutdownMessage;
+        publish();
     }
 
     /**
@@ -153,16 +266,28 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @return string with the white listed projects separated by newlines
      */
     public String getWhiteListedProjectsText() {
-        return StringUtils.join(whiteListedProjects, "\n");
+        return StringUtils.join(snapshot.getWhiteListedProjects(), "\n");
     }
 
     /**
      * Gets the set of white listed projects.
+     * Every change made through the returned set is published on its own; use
+     * {@link #setWhiteListedProjects(Collection)} to replace the whole list at once.
      *
      * @return Set of white listed projects
      */
     public Set<String> getWhiteListedProjects() {
-        return whiteListedProjects;
+        return new WhiteListView();
+    }
+
+    /**
+     * Replaces the white listed projects.
+     *
+     * @param projects the names of the white listed projects
+     */
+    public synchronized void setWhiteListedProjects(Collection<String> projects) {
+        whiteListedProjects = Collections.synchronizedSet(new TreeSet<String>(projects));
+        publish();
     }
 
     /**
@@ -172,7 +297,32 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @return true if white listed projects are allowed and the given project name is found in the list
      */
     public boolean isWhiteListedProject(String name) {
-        return allowWhiteListedProjects && whiteListedProjects.contains(name);
+        return snapshot.isWhiteListedProject(name);
+    }
+
+    /**
+     * Applies the options of a lenient quiet down command and publishes them together.
+     *
+     * @param message the shutdown message, or null to keep the current one
+     * @param allowAllQueued true if all queued items are allowed to finish
+     * @param allowWhiteListed true if white listed projects are allowed
+     * @param deadlineMinutes the drain deadline in minutes, 0 for no deadline, or null to keep the current one
+     * @param projects the white listed projects, or null to keep the current ones
+     */
+    public synchronized void applyCommandOptions(String message, boolean allowAllQueued, boolean allowWhiteListed,
+                                                 Integer deadlineMinutes, Collection<String> projects) {
+        if (message != null) {
+            shutdownMessage = message;
+        }
+        allowAllQueuedItems = allowAllQueued;
+        allowWhiteListedProjects = allowWhiteListed;
+        if (deadlineMinutes != null) {
+            drainDeadlineMinutes = Math.max(deadlineMinutes, 0);
+        }
+        if (projects != null) {
+            whiteListedProjects = Collections.synchronizedSet(new TreeSet<String>(projects));
+        }
+        publish();
     }
 
     /**
@@ -185,23 +335,236 @@ public class ShutdownConfiguration extends GlobalConfiguration {
      * @throws FormException if the form was malformed
      */
     @Override
-    public boolean configure(StaplerRequest2 staplerRequest, JSONObject json) throws FormException {
+    public synchronized boolean configure(StaplerRequest2 staplerRequest, JSONObject json) throws FormException {
         shutdownMessage = json.getString("shutdownMessage");
         allowAllQueuedItems = json.getBoolean("allowAllQueuedItems");
         allowWhiteListedProjects = json.getBoolean("allowWhiteListedProjects");
         allowAllJobs = json.getBoolean("allowAllJobs");
-        whiteListedProjects.clear();
-        whiteListedProjects.addAll(Arrays.asList(json.getString("whiteListedProjects").split(DELIMETER)));
+        precomputeDownstreamClosure = json.optBoolean("precomputeDownstreamClosure");
+        drainDeadlineMinutes = Math.max(json.optInt("drainDeadlineMinutes"), 0);
+        longestChainFirst = json.optBoolean("longestChainFirst");
+        whiteListedProjects = Collections.synchronizedSet(new TreeSet<String>(
+                Arrays.asList(json.getString("whiteListedProjects").split(DELIMETER))));
+        publish();
         save();
         return true;
     }
 
+    /**
+     * Adds a white listed project and publishes the change.
+     *
+     * @param project the project name
+     * @return true if the project was added
+     */
+    private synchronized boolean addWhiteListedProject(String project) {
+        boolean changed = whiteListedProjects.add(project);
+        if (changed) {
+            publish();
+        }
+        return changed;
+    }
+
+    /**
+     * Removes a white listed project and publishes the change.
+     *
+     * @param project the project name
+     */
+    private synchronized void removeWhiteListedProject(String project) {
+        if (whiteListedProjects.remove(project)) {
+            publish();
+        }
+    }
+
+    /**
+     * Publishes the current settings as a new snapshot. Called with this instance locked.
+     */
+    private void publish() {
+        snapshot = new Snapshot(this);
+    }
+
     /**
      * The singleton instance registered in the Jenkins extension list.
      *
      * @return the instance
      */
     public static ShutdownConfiguration getInstance() {
-        return GlobalConfiguration.all().get(ShutdownConfiguration.class);
+        ShutdownConfiguration configuration = instance;
+        if (configuration == null) {
+            configuration = GlobalConfiguration.all().get(ShutdownConfiguration.class);
+        }
+        return configuration;
+    }
+
+    /**
+     * Resolves the registered instance once the extensions are loaded.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    @Restricted(NoExternalUse.class)
+    public static void resolveInstance() {
+        instance = GlobalConfiguration.all().get(ShutdownConfiguration.class);
+    }
+
+    /**
+     * Forgets the resolved instance, so that the one of a new Jenkins instance is looked up.
+     */
+    @Terminator
+    @Restricted(NoExternalUse.class)
+    public static void resetInstance() {
+        instance = null;
+    }
+
+    /**
+     * An immutable copy of the configuration, replaced as a whole on every change.
+     */
+    public static final class Snapshot {
+        private final String shutdownMessage;
+        private final boolean allowAllQueuedItems;
+        private final boolean allowWhiteListedProjects;
+        private final boolean allowAllJobs;
+        private final boolean precomputeDownstreamClosure;
+        private final int drainDeadlineMinutes;
+        private final boolean longestChainFirst;
+        private final Set<String> whiteListedProjects;
+
+        /**
+         * Copies the current settings of argument configuration.
+         * @param configuration the configuration, locked by the caller
+         */
+        private Snapshot(ShutdownConfiguration configuration) {
+            this.shutdownMessage = configuration.shutdownMessage;
+            this.allowAllQueuedItems = configuration.allowAllQueuedItems;
+            this.allowWhiteListedProjects = configuration.allowWhiteListedProjects;
+            this.allowAllJobs = configuration.allowAllJobs;
+            this.precomputeDownstreamClosure = configuration.precomputeDownstreamClosure;
+            this.drainDeadlineMinutes = configuration.drainDeadlineMinutes;
+            this.longestChainFirst = configuration.longestChainFirst;
+            Set<String> projects = configuration.whiteListedProjects;
+            synchronized (projects) {
+                this.whiteListedProjects = Collections.unmodifiableSet(new TreeSet<String>(projects));
+            }
+        }
+
+        /**
+         * Gets the shutdown message to be displayed in header.
+         * @return message to display in header
+         */
+        public String getShutdownMessage() {
+            return shutdownMessage;
+        }
+
+        /**
+         * Checks if all queued items are allowed to build in lenient shutdown mode.
+         * @return true if all queued items will build, false otherwise
+         */
+        public boolean isAllowAllQueuedItems() {
+            return allowAllQueuedItems;
+        }
+
+        /**
+         * Checks if white listed projects are allowed to build in lenient shutdown mode.
+         * @return true if white listed projects will build, false otherwise
+         */
+        public boolean isAllowWhiteListedProjects() {
+            return allowWhiteListedProjects;
+        }
+
+        /**
+         * Checks if any type of hudson.model.Job is allowed to finish.
+         * @return true if all jobs are allowed, false otherwise
+         */
+        public boolean isAllowAllJobs() {
+            return allowAllJobs;
+        }
+
+        /**
+         * Checks if the downstream closure is precomputed when lenient shutdown is activated.
+         * @return true if the downstream closure is precomputed, false otherwise
+         */
+        public boolean isPrecomputeDownstreamClosure() {
+            return precomputeDownstreamClosure;
+        }
+
+        /**
+         * Gets the number of minutes after activation by which lenient shutdown should be done.
+         * @return the number of minutes, 0 if there is no deadline
+         */
+        public int getDrainDeadlineMinutes() {
+            return drainDeadlineMinutes;
+        }
+
+        /**
+         * Checks if the permitted builds are ordered so that lenient shutdown is done sooner.
+         * @return true if permitted builds are ordered, false otherwise
+         */
+        public boolean isLongestChainFirst() {
+            return longestChainFirst;
+        }
+
+        /**
+         * Gets the white listed projects.
+         * @return unmodifiable set of project names
+         */
+        public Set<String> getWhiteListedProjects() {
+            return whiteListedProjects;
+        }
+
+        /**
+         * Checks whether the given project name is allowed to run.
+         * @param name the name of the project to check
+         * @return true if white listed projects are allowed and the given project name is found in the list
+         */
+        public boolean isWhiteListedProject(String name) {
+            return allowWhiteListedProjects && whiteListedProjects.contains(name);
+        }
+    }
+
+    /**
+     * A view of the white listed projects that publishes every change. It reads the published
+     * snapshot, and the bulk operations of {@link AbstractSet} change one project at a time.
+     */
+    private final class WhiteListView extends AbstractSet<String> {
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> projects = snapshot.getWhiteListedProjects().iterator();
+            return new Iterator<String>() {
+                private String current;
+
+                @Override
+                public boolean hasNext() {
+                    return projects.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    current = projects.next();
+                    return current;
+                }
+
+                @Override
+                public void remove() {
+                    if (current == null) {
+                        throw new IllegalStateException();
+                    }
+                    removeWhiteListedProject(current);
+                    current = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return snapshot.getWhiteListedProjects().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return snapshot.getWhiteListedProjects().contains(o);
+        }
+
+        @Override
+        public boolean add(String project) {
+            return addWhiteListedProject(project);
+        }
     }
 }
@@ -24,19 +24,37 @@
 
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
+import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
 import hudson.model.PageDecorator;
 import jenkins.model.Jenkins;
 
 /**
  * Adds a header about the lenient shutdown mode when it's active.
+ * The header runs on every page, so it is rendered to escaped HTML once and only
+ * rendered again when the state or the message changes, or a new minute starts.
+ * The estimate is only read and formatted once per minute, since it is shown in minutes.
  *
  * @author Fredrik Persson &lt;fredrik6.persson@sonymobile.com&gt;
  */
 @Extension
 public class ShutdownDecorator extends PageDecorator {
 
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The last rendered banner, null until lenient shutdown is first activated.
+     */
+    private volatile Banner banner;
+
     /**
      * Checks if Jenkins has been put to lenient shutdown mode.
      * @return true if Jenkins is in lenient shutdown mode, otherwise false
@@ -50,7 +68,64 @@ public class ShutdownDecorator extends PageDecorator {
      * @return message to display in header
      */
     public String getShutdownMessage() {
-        return ShutdownConfiguration.getInstance().getShutdownMessage();
+        return ShutdownConfiguration.getInstance().getSnapshot().getShutdownMessage();
+    }
+
+    /**
+     * Gets when lenient shutdown is estimated to be done, to be displayed in header.
+     * @return the estimate to display, or null if there is none
+     */
+    public String getEstimatedCompletion() {
+        long completionTime = DrainEstimator.getCompletionTime();
+        if (completionTime <= 0) {
+            return null;
+        }
+        return Messages.EstimatedCompletion(formatTime(completionTime, System.currentTimeMillis()));
+    }
+
+    /**
+     * Formats a time to show, with the date unless it is on the same day as now.
+     * Used for every time the plugin shows, so they all look the same.
+     * @param time the time in milliseconds since the epoch
+     * @param now the current time in milliseconds since the epoch
+     * @return the formatted time
+     */
+    public static String formatTime(long time, long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        DateFormat format;
+        if (Instant.ofEpochMilli(time).atZone(zone).toLocalDate().equals(
+                Instant.ofEpochMilli(now).atZone(zone).toLocalDate())) {
+            format = DateFormat.getTimeInstance(DateFormat.SHORT);
+        } else {
+            format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        }
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Gets the banner to display in header, as escaped HTML.
+     * While lenient shutdown is not active this only reads one volatile field.
+     * @return the banner HTML, or null if lenient shutdown is not active
+     */
+    public String getBannerHtml() {
+        if (!DrainActivity.isGlobalDraining()) {
+            return null;
+        }
+        ShutdownManageLink.DrainStatus status = ShutdownManageLink.getInstance().getDrainStatus();
+        String message = getShutdownMessage();
+        long minute = System.currentTimeMillis() / MINUTE;
+        Banner current = banner;
+        if (current != null && current.minute == minute && current.isFor(status, message)) {
+            return current.html;
+        }
+        String estimatedCompletion = getEstimatedCompletion();
+        if (current != null && current.isFor(status, message) && current.isFor(estimatedCompletion)) {
+            current = current.at(minute);
+        } else {
+            current = new Banner(status, message, estimatedCompletion, minute);
+        }
+        banner = current;
+        return current.html;
     }
 
     /**
@@ -65,4 +140,77 @@ public class ShutdownDecorator extends PageDecorator {
             throw new IllegalStateException("Extensions are not loaded yet.");
         }
     }
+
+    /**
+     * A rendered banner together with what it was rendered from.
+     */
+    private static final class Banner {
+        private final ShutdownManageLink.DrainStatus status;
+        private final String message;
+        private final String estimatedCompletion;
+        private final long minute;
+        private final String html;
+
+        /**
+         * Renders a banner.
+         * @param status the lenient shutdown status
+         * @param message the shutdown message
+         * @param estimatedCompletion the estimate to show, may be null
+         * @param minute the minute the estimate was read in, in minutes since the epoch
+         */
+        private Banner(ShutdownManageLink.DrainStatus status, String message, String estimatedCompletion,
+                       long minute) {
+            this.status = status;
+            this.message = message;
+            this.estimatedCompletion = estimatedCompletion;
+            this.minute = minute;
+            StringBuilder builder = new StringBuilder("<div id=\"lenient-shutdown-msg\">");
+            builder.append(Util.escape(message));
+            if (estimatedCompletion != null) {
+                builder.append("<br/>").append(Util.escape(estimatedCompletion));
+            }
+            this.html = builder.append("</div>").toString();
+        }
+
+        /**
+         * Creates a banner with the same content for another minute.
+         * @param banner the banner to copy
+         * @param minute the minute the estimate was read in, in minutes since the epoch
+         */
+        private Banner(Banner banner, long minute) {
+            this.status = banner.status;
+            this.message = banner.message;
+            this.estimatedCompletion = banner.estimatedCompletion;
+            this.minute = minute;
+            this.html = banner.html;
+        }
+
+        /**
+         * Gets this banner for another minute, without rendering it again.
+         * @param otherMinute the minute the estimate was read in, in minutes since the epoch
+         * @return the banner
+         */
+        private Banner at(long otherMinute) {
+            return new Banner(this, otherMinute);
+        }
+
+        /**
+         * Checks if this banner was rendered from argument state and message.
+         * @param otherStatus the lenient shutdown status
+         * @param otherMessage the shutdown message
+         * @return true if the banner shows argument state and message, otherwise false
+         */
+        private boolean isFor(ShutdownManageLink.DrainStatus otherStatus, String otherMessage) {
+            return status == otherStatus && Objects.equals(message, otherMessage);
+        }
+
+        /**
+         * Checks if this banner was rendered from argument estimate.
+         * @param otherEstimatedCompletion the estimate to show, may be null
+         * @return true if the banner shows argument estimate, otherwise false
+         */
+        private boolean isFor(String otherEstimatedCompletion) {
+            return Objects.equals(estimatedCompletion, otherEstimatedCompletion);
+        }
+    }
 }
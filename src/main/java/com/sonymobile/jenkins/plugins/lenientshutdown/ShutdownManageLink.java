@@ -26,52 +26,91 @@
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import org.apache.commons.collections.CollectionUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Api;
+import hudson.model.Computer;
 import hudson.model.ManagementLink;
 import hudson.security.Permission;
 import jenkins.model.Jenkins;
-import jenkins.security.SecurityContextExecutorService;
+import jenkins.util.Timer;
 
 /**
  * Adds a link on the manage Jenkins page for lenient shutdown.
+ * Also reports the lenient shutdown progress at {@code manage/lenientshutdown/api/}
+ * ({@code manage/cancelLenientShutdown/api/} while lenient shutdown is active), and at the
+ * stable {@code lenientshutdown/api/} served by {@link ShutdownStatusAction}.
  *
  * @author Fredrik Persson &lt;fredrik6.persson@sonymobile.com&gt;
  */
 @Extension
+@ExportedBean
 public class ShutdownManageLink extends ManagementLink {
 
     /**
      * The list of queue ids, that belong to projects that where running at time of lenient shutdown
      * and any of the downstream builds.
      */
-    private Set<Long> permittedQueueIds = Collections.synchronizedSet(new HashSet<Long>());
+    private final QueueIdSet permittedQueueIds = new QueueIdSet();
 
     /**
      * The list of queue ids that correspond to running builds of permitted queue ids
      */
-    private Set<Long> activeQueueIds = Collections.synchronizedSet(new HashSet<Long>());
+    private final QueueIdSet activeQueueIds = new QueueIdSet();
 
     /**
      * The list of queue ids belonging to white listed projects runs
      */
-    private Set<Long> whiteListedQueueIds = Collections.synchronizedSet(new HashSet<Long>());
+    private final QueueIdSet whiteListedQueueIds = new QueueIdSet();
+
+    /**
+     * The current state, replaced as a whole on every transition.
+     */
+    private final AtomicReference<DrainStatus> status = new AtomicReference<DrainStatus>(
+            new DrainStatus(DrainState.INACTIVE, 0));
+
+    /**
+     * When lenient shutdown was last activated, in milliseconds since the epoch.
+     */
+    private volatile long activatedAt;
+
+    /**
+     * Serializes publishing the state to {@link DrainActivity}.
+     */
+    private final Object publishLock = new Object();
 
-    private boolean isGoingToShutdown;
-    private boolean analyzing;
-    private static ShutdownManageLink instance;
+    /**
+     * Serializes recording and forgetting the permitted builds.
+     */
+    private final Object activationLock = new Object();
+
+    /**
+     * Serializes changing the active queue ids with the transitions that depend on them being empty.
+     * Taken after {@link #activationLock}, never before it.
+     */
+    private final Object activeLock = new Object();
+
+    /**
+     * The registered instance, resolved once the extensions are loaded and forgotten when Jenkins terminates.
+     */
+    private static volatile ShutdownManageLink instance;
 
     /**
      * URL to the plugin.
@@ -85,17 +124,47 @@ public class ShutdownManageLink extends ManagementLink {
 
     /**
      * Returns the instance of ShutdownMangeLink.
+     * Once Jenkins is initialized this is a single field read.
      * @return instance the ShutdownMangeLink.
      */
     public static ShutdownManageLink getInstance() {
+        ShutdownManageLink link = instance;
+        if (link == null) {
+            link = lookupInstance();
+        }
+        return link;
+    }
+
+    /**
+     * Resolves the registered instance once the extensions are loaded.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    @Restricted(NoExternalUse.class)
+    public static void resolveInstance() {
+        instance = lookupInstance();
+    }
+
+    /**
+     * Forgets the resolved instance, so that the one of a new Jenkins instance is looked up.
+     */
+    @Terminator
+    @Restricted(NoExternalUse.class)
+    public static void resetInstance() {
+        instance = null;
+    }
+
+    /**
+     * Looks up the registered instance.
+     * @return the instance, or null if the extensions are not loaded
+     */
+    private static ShutdownManageLink lookupInstance() {
         List<ManagementLink> list = Jenkins.get().getManagementLinks();
-        for (ManagementLink link : list) {
-            if (link instanceof ShutdownManageLink) {
-                instance = (ShutdownManageLink)link;
-                break;
+        for (ManagementLink candidate : list) {
+            if (candidate instanceof ShutdownManageLink) {
+                return (ShutdownManageLink)candidate;
             }
         }
-        return instance;
+        return null;
     }
 
     /**
@@ -126,7 +195,7 @@ public class ShutdownManageLink extends ManagementLink {
      */
     @Override
     public String getUrlName() {
-        if (isGoingToShutdown) {
+        if (isGoingToShutdown()) {
             return "cancelLenientShutdown";
         } else {
             return URL;
@@ -157,11 +226,15 @@ public class ShutdownManageLink extends ManagementLink {
     }
 
     /**
-     * Toggle the lenient shutdown state.
+     * Toggle the lenient shutdown state, without analyzing the queue.
      */
     public void toggleGoingToShutdown() {
-        isGoingToShutdown = !isGoingToShutdown;
-        analyzing = isGoingToShutdown;
+        DrainStatus current = status.get();
+        if (current.getState().isActive()) {
+            transition(current, DrainState.CANCELLED);
+        } else {
+            transition(current, DrainState.ANALYZING);
+        }
     }
 
     /**
@@ -169,7 +242,118 @@ public class ShutdownManageLink extends ManagementLink {
      * @return true if Jenkins is in lenient shutdown mode, otherwise false
      */
     public boolean isGoingToShutdown() {
-        return isGoingToShutdown;
+        return status.get().getState().isActive();
+    }
+
+    /**
+     * Gets the current state and the epoch it was entered in.
+     * @return the drain status
+     */
+    public DrainStatus getDrainStatus() {
+        return status.get();
+    }
+
+    /**
+     * Gets the current state.
+     * @return the state
+     */
+    @Exported
+    public DrainState getDrainState() {
+        return status.get().getState();
+    }
+
+    /**
+     * Gets the epoch in which the current state was entered.
+     * @return the epoch
+     */
+    @Exported
+    public long getEpoch() {
+        return status.get().getEpoch();
+    }
+
+    /**
+     * Gets the time by which lenient shutdown should be done, derived from the activation time
+     * and {@link ShutdownConfiguration#getDrainDeadlineMinutes()}.
+     * @return the deadline in milliseconds since the epoch, or 0 if there is none
+     */
+    @Exported
+    public long getDrainDeadline() {
+        int minutes = getConfiguration().getSnapshot().getDrainDeadlineMinutes();
+        if (minutes <= 0 || !isGoingToShutdown()) {
+            return 0;
+        }
+        return activatedAt + TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    /**
+     * Gets when lenient shutdown is estimated to be done, from the running builds, the permitted
+     * queued items and the downstream builds they may trigger.
+     * @return the time in milliseconds since the epoch, or 0 if lenient shutdown is not active
+     */
+    @Exported
+    public long getEstimatedCompletionTime() {
+        return DrainEstimator.getCompletionTime();
+    }
+
+    /**
+     * Gets when lenient shutdown is predicted to be done, when permitted builds are ordered
+     * to finish it sooner.
+     * @return the time in milliseconds since the epoch, or 0 if not predicted
+     * @see ShutdownConfiguration#isLongestChainFirst()
+     */
+    @Exported
+    public long getPredictedCompletionTime() {
+        return DrainSorter.getPredictedCompletionTime();
+    }
+
+    /**
+     * Gets the number of permitted builds that are still running.
+     * @return the number of builds
+     */
+    @Exported
+    public int getRunningPermittedBuildCount() {
+        int count = 0;
+        for (long id : RunningWork.getRunningQueueIds()) {
+            if (activeQueueIds.contains(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of queued items currently blocked by lenient shutdown.
+     * @return the number of items
+     */
+    @Exported
+    public int getBlockedItemCount() {
+        return BlockedItems.getBlockedCount();
+    }
+
+    /**
+     * Gets the lenient shutdown progress of the nodes that are shutting down leniently.
+     * @return the progress of each draining node
+     */
+    @Exported
+    public List<ShutdownSlaveAction> getDrainingNodes() {
+        List<ShutdownSlaveAction> nodes = new ArrayList<ShutdownSlaveAction>();
+        Jenkins jenkins = Jenkins.get();
+        for (String nodeName : PluginImpl.getInstance().getShuttingDownNodeNames()) {
+            Computer computer = jenkins.getComputer(nodeName);
+            if (computer != null) {
+                nodes.add(new ShutdownSlaveAction(computer));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Gets the remote API for the lenient shutdown progress.
+     * @return the API
+     */
+    public Api getApi() {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        return new Api(this);
     }
 
     /**
@@ -184,7 +368,8 @@ public class ShutdownManageLink extends ManagementLink {
 
     /**
      * Method triggered when pressing the management link.
-     * Toggles the lenient shutdown mode.
+     * Toggles the lenient shutdown mode. The permitted builds are recorded in the background,
+     * the state is {@link DrainState#ANALYZING} until they are.
      *
      * @param req StaplerRequest
      * @param rsp StaplerResponse
@@ -193,35 +378,185 @@ public class ShutdownManageLink extends ManagementLink {
     public synchronized void doIndex(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
         Jenkins.get().checkPermission(getRequiredPermission());
 
-        performToggleGoingToShutdown();
+        if (isGoingToShutdown()) {
+            performCancel();
+        } else {
+            final DrainStatus analyzing = beginActivation();
+            if (analyzing != null) {
+                Timer.get().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeActivation(analyzing);
+                    }
+                });
+            }
+        }
         rsp.sendRedirect2(req.getContextPath() + "/manage");
     }
 
     /**
-     * Toggles the flag and prepares for lenient shutdown if needed.
+     * Serves the dispatcher and analysis metrics recorded by {@link DispatchMetrics} as JSON,
+     * at {@code manage/lenientshutdown/metrics} (or {@code manage/cancelLenientShutdown/metrics}
+     * while lenient shutdown is active), and at the stable {@code lenientshutdown/metrics}.
      *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @throws IOException if unable to write the response
+     */
+    public void doMetrics(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(DispatchMetrics.toJson().toString());
+    }
+
+    /**
+     * Toggles the flag and prepares for lenient shutdown if needed.
+     * @see #performActivate()
+     * @see #performCancel()
      */
-    @SuppressFBWarnings(
-        value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
-        justification = "Fire and forget for asynchronous processing"
-    )
     public void performToggleGoingToShutdown() {
-        toggleGoingToShutdown();
         if (isGoingToShutdown()) {
-            ExecutorService service = new SecurityContextExecutorService(Executors.newSingleThreadExecutor());
-            service.submit(new Runnable() {
-                @Override
-                public void run() {
-                    permittedQueueIds.clear();
-                    activeQueueIds.clear();
-                    whiteListedQueueIds.clear();
-                    permittedQueueIds.addAll(QueueUtils.getPermittedQueueItemIds());
-                    permittedQueueIds.addAll(QueueUtils.getRunningProjectQueueIds());
-                    activeQueueIds.addAll(permittedQueueIds);
-                    analyzing = false;
+            performCancel();
+        } else {
+            performActivate();
+        }
+    }
+
+    /**
+     * Activates lenient shutdown and records the queued and running builds that are permitted
+     * to finish. The permitted queue ids are copied from the continuously maintained
+     * {@link QueueTracker}.
+     * Does nothing if lenient shutdown is already active. If lenient shutdown is cancelled
+     * while the builds are recorded, the recorded builds are forgotten again.
+     * @return true if lenient shutdown was activated by this call, false if it already was active
+     *         or was cancelled before the activation completed
+     */
+    public boolean performActivate() {
+        DrainStatus analyzing = beginActivation();
+        return analyzing != null && completeActivation(analyzing);
+    }
+
+    /**
+     * Moves to {@link DrainState#ANALYZING} and forgets any previously permitted builds.
+     * @return the new status, or null if lenient shutdown already is active
+     */
+    private DrainStatus beginActivation() {
+        synchronized (activationLock) {
+            DrainStatus current = status.get();
+            if (current.getState().isActive()) {
+                return null;
+            }
+            DrainStatus analyzing = transition(current, DrainState.ANALYZING);
+            if (analyzing != null) {
+                activatedAt = System.currentTimeMillis();
+                forgetPermitted();
+            }
+            //Null if another caller changed the state first
+            return analyzing;
+        }
+    }
+
+    /**
+     * Records the permitted builds and moves on from {@link DrainState#ANALYZING}, unless the
+     * state has changed since argument status was entered.
+     * @param analyzing the status entered by {@link #beginActivation()}
+     * @return true if the activation completed, false if it was cancelled
+     */
+    private boolean completeActivation(DrainStatus analyzing) {
+        synchronized (activationLock) {
+            if (status.get() != analyzing) {
+                //Cancelled before the builds were recorded
+                return false;
+            }
+            long start = System.nanoTime();
+            Set<Long> queuedIds = QueueUtils.getPermittedQueueItemIds();
+            Set<Long> runningIds = QueueUtils.getRunningProjectQueueIds();
+            permittedQueueIds.addAll(queuedIds);
+            permittedQueueIds.addAll(runningIds);
+            activeQueueIds.addAll(queuedIds);
+            activeQueueIds.addAll(runningIds);
+            if (status.get() != analyzing) {
+                //Cancelled while analyzing
+                forgetPermitted();
+                return false;
+            }
+            if (getConfiguration().getSnapshot().isPrecomputeDownstreamClosure()) {
+                DownstreamClosure.activate();
+            }
+            DrainEstimator.queued(queuedIds);
+            DispatchMetrics.recordGlobalAnalysis(System.nanoTime() - start);
+            DrainStatus analyzed;
+            synchronized (activeLock) {
+                if (activeQueueIds.isEmpty()) {
+                    analyzed = transition(analyzing, DrainState.DRAINED);
+                } else {
+                    analyzed = transition(analyzing, DrainState.DRAINING);
                 }
-            });
+            }
+            if (analyzed == null) {
+                //Cancelled after the check above
+                forgetPermitted();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cancels lenient shutdown and forgets the permitted builds.
+     * Does nothing if lenient shutdown is not active.
+     * @return true if lenient shutdown was cancelled by this call, false if it was not active
+     */
+    public boolean performCancel() {
+        DrainStatus current = status.get();
+        while (current.getState().isActive()) {
+            DrainStatus cancelled = transition(current, DrainState.CANCELLED);
+            if (cancelled != null) {
+                //Waits for an ongoing activation, and leaves alone the one of a later activation
+                synchronized (activationLock) {
+                    if (status.get() == cancelled) {
+                        forgetPermitted();
+                    }
+                }
+                return true;
+            }
+            current = status.get();
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the permitted builds and everything derived from them.
+     */
+    private void forgetPermitted() {
+        permittedQueueIds.clear();
+        activeQueueIds.clear();
+        whiteListedQueueIds.clear();
+        DownstreamClosure.clear();
+        BlockedItems.clear();
+        DrainEstimator.clear();
+    }
+
+    /**
+     * Moves from argument status to a new state in a new epoch, unless the status has changed meanwhile.
+     * @param from the expected current status
+     * @param to the new state
+     * @return the new status, or null if the current status was not the expected one
+     */
+    private DrainStatus transition(DrainStatus from, DrainState to) {
+        DrainStatus next = new DrainStatus(to, DrainActivity.advanceEpoch());
+        if (!status.compareAndSet(from, next)) {
+            return null;
         }
+        if (from.getState().isActive() != to.isActive()) {
+            //Read the state again under the lock, so that the last publisher sees the last transition
+            synchronized (publishLock) {
+                DrainActivity.setGlobalDraining(isGoingToShutdown());
+                DrainSorter.update(isGoingToShutdown());
+            }
+        }
+        return next;
     }
 
     /**
@@ -231,7 +566,7 @@ public class ShutdownManageLink extends ManagementLink {
      *         otherwise
      */
     public boolean isAnalyzing() {
-        return analyzing;
+        return status.get().getState() == DrainState.ANALYZING;
     }
 
     /**
@@ -241,8 +576,18 @@ public class ShutdownManageLink extends ManagementLink {
      * @return true if at least one of the projects is white listed
      */
     public boolean isAnyPermittedUpstreamProject(Set<Long> queueIds) {
-        Collection<?> intersection = CollectionUtils.intersection(queueIds, permittedQueueIds);
-        return !intersection.isEmpty();
+        return permittedQueueIds.containsAny(queueIds);
+    }
+
+    /**
+     * Checks if any of the queue ids in argument array is in the list of permitted queue ids.
+     * Does not allocate and stops at the first match.
+     *
+     * @param queueIds the queue ids to check
+     * @return true if at least one of the projects is permitted
+     */
+    public boolean isAnyPermittedUpstreamProject(long[] queueIds) {
+        return permittedQueueIds.containsAny(queueIds);
     }
 
     /**
@@ -252,8 +597,18 @@ public class ShutdownManageLink extends ManagementLink {
      * @return true if at least one of the projects is white listed
      */
     public boolean isAnyWhiteListedUpstreamProject(Set<Long> queueIds) {
-        Collection<?> intersection = CollectionUtils.intersection(queueIds, whiteListedQueueIds);
-        return !intersection.isEmpty();
+        return whiteListedQueueIds.containsAny(queueIds);
+    }
+
+    /**
+     * Checks if any of the queue ids in argument array is coming from a white listed project run.
+     * Does not allocate and stops at the first match.
+     *
+     * @param queueIds the queue ids to check
+     * @return true if at least one of the projects is white listed
+     */
+    public boolean isAnyWhiteListedUpstreamProject(long[] queueIds) {
+        return whiteListedQueueIds.containsAny(queueIds);
     }
 
     /**
@@ -271,7 +626,13 @@ public class ShutdownManageLink extends ManagementLink {
      * @param id the queue id to add
      */
     public void addActiveQueueId(long id) {
-        activeQueueIds.add(id);
+        synchronized (activeLock) {
+            activeQueueIds.add(id);
+            DrainStatus current = status.get();
+            if (current.getState() == DrainState.DRAINED) {
+                transition(current, DrainState.DRAINING);
+            }
+        }
     }
 
     /**
@@ -281,7 +642,21 @@ public class ShutdownManageLink extends ManagementLink {
      * @param id the queue id to remove
      */
     public void removeActiveQueueId(long id) {
-        activeQueueIds.remove(id);
+        synchronized (activeLock) {
+            activeQueueIds.remove(id);
+            transitionIfDrained();
+        }
+    }
+
+    /**
+     * Moves from {@link DrainState#DRAINING} to {@link DrainState#DRAINED} once no permitted builds remain.
+     * Called with {@link #activeLock} held, so that no id is added between the check and the transition.
+     */
+    private void transitionIfDrained() {
+        DrainStatus current = status.get();
+        if (current.getState() == DrainState.DRAINING && activeQueueIds.isEmpty()) {
+            transition(current, DrainState.DRAINED);
+        }
     }
 
     /**
@@ -311,4 +686,83 @@ public class ShutdownManageLink extends ManagementLink {
     public void addWhiteListedQueueId(long id) {
         whiteListedQueueIds.add(id);
     }
+
+    /**
+     * Removes argument queue ids from the permitted, active and white listed ids.
+     * @param ids the queue ids to remove
+     */
+    void removeQueueIds(Collection<Long> ids) {
+        synchronized (activeLock) {
+            for (long id : ids) {
+                permittedQueueIds.remove(id);
+                activeQueueIds.remove(id);
+                whiteListedQueueIds.remove(id);
+            }
+            //The last permitted item may have been cancelled in the queue
+            transitionIfDrained();
+        }
+    }
+
+    /**
+     * Gets the number of permitted queue ids.
+     * @return the number of ids
+     */
+    @Exported
+    public int getPermittedQueueIdCount() {
+        return permittedQueueIds.size();
+    }
+
+    /**
+     * Gets the number of active queue ids.
+     * @return the number of ids
+     */
+    @Exported
+    public int getActiveQueueIdCount() {
+        return activeQueueIds.size();
+    }
+
+    /**
+     * Gets the number of white listed queue ids.
+     * @return the number of ids
+     */
+    @Exported
+    public int getWhiteListedQueueIdCount() {
+        return whiteListedQueueIds.size();
+    }
+
+    /**
+     * A lenient shutdown state together with the epoch in which it was entered.
+     * Instances are immutable and replaced as a whole on every transition.
+     */
+    public static final class DrainStatus {
+        private final DrainState state;
+        private final long epoch;
+
+        /**
+         * Creates a status.
+         * @param state the state
+         * @param epoch the epoch
+         */
+        DrainStatus(DrainState state, long epoch) {
+            this.state = state;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Gets the state.
+         * @return the state
+         */
+        public DrainState getState() {
+            return state;
+        }
+
+        /**
+         * Gets the epoch in which the state was entered; it increases with every transition.
+         * @return the epoch
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+    }
+
 }
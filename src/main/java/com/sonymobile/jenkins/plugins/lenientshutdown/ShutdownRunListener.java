@@ -24,23 +24,15 @@
 
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 import hudson.Extension;
-import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.model.User;
 import hudson.model.listeners.RunListener;
-import jenkins.model.Jenkins;
-import jenkins.util.Timer;
 
 /**
- * Listens for completed builds and sets nodes as offline when they are
- * finished if they have "set as temp. offline leniently" activated.
+ * Listens for started and completed builds to keep track of upstream builds
+ * and of the builds that were active when lenient shutdown was activated.
+ * Nodes are set offline by {@link NodeIdleCheck} once their executors are done.
  *
  * @param <R> run type
  *
@@ -49,39 +41,27 @@ import jenkins.util.Timer;
 @Extension(ordinal = Double.MAX_VALUE)
 public class ShutdownRunListener<R extends Run> extends RunListener<R> {
 
-    private static final int TASK_DELAY_SECONDS = 10;
-
-    private static final Logger logger = Logger.getLogger(ShutdownRunListener.class.getName());
-
     @Override
-    public void onCompleted(final R r, TaskListener listener) {
-        final PluginImpl plugin = PluginImpl.getInstance();
-
-        Executor executor = r.getExecutor();
-        if (executor != null) {
-            final Computer computer = executor.getOwner();
-            final String nodeName = computer.getName();
+    public void onStarted(R r, TaskListener listener) {
+        UpstreamRunIndex.started(r);
+        RunningWork.started(r);
+        DrainEstimator.started(r);
+        DrainSorter.started();
+        DownstreamClosure.started(r);
+    }
 
-            if (plugin.isNodeShuttingDown(nodeName)
-                && !Jenkins.get().isTerminating()) {
-                //Schedule checking if all builds are completed on the build node after a delay
-                Runnable isNodeIdleTask = new Runnable() {
-                    @Override
-                    public void run() {
-                        if (plugin.isNodeShuttingDown(nodeName) && !PluginImpl.isTemporarilyOffline(computer)
-                                && !QueueUtils.isBuilding(computer)
-                                && !QueueUtils.hasNodeExclusiveItemInQueue(computer)) {
-                            logger.log(Level.INFO, "Node {0} idle; setting offline since lenient "
-                                    + "shutdown was active for this node", nodeName);
+    @Override
+    public void onFinalized(R r) {
+        RunningWork.finalized(r);
+        QueueIdPruner.retire(r.getQueueId());
+    }
 
-                            User user = plugin.getOfflineByUser(nodeName);
-                            computer.setTemporaryOfflineCause(new LenientOfflineCause(user));
-                        }
-                    }
-                };
-                Timer.get().schedule(isNodeIdleTask, TASK_DELAY_SECONDS, TimeUnit.SECONDS);
-            }
-        }
+    @Override
+    public void onCompleted(R r, TaskListener listener) {
+        UpstreamRunIndex.completed(r);
+        QueueTracker.upstreamCompleted(r);
+        DrainEstimator.completed(r);
+        DrainSorter.completed();
 
         ShutdownManageLink shutdownManageLink = ShutdownManageLink.getInstance();
         boolean isGoingToShutdown = shutdownManageLink.isGoingToShutdown();
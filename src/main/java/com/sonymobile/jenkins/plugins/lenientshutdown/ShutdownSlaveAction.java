@@ -24,19 +24,25 @@
 
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
+import hudson.model.Api;
 import hudson.model.Computer;
 import hudson.model.RootAction;
 import hudson.util.HttpResponses;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import java.io.IOException;
 
 /**
  * Action to be displayed on computer pages for turning slaves
- * offline leniently.
+ * offline leniently. Also reports the lenient shutdown progress of the node
+ * at {@code computer/<name>/lenientshutdown/api/}.
  *
  * @author Fredrik Persson &lt;fredrik6.persson@sonymobile.com&gt;
  */
+@ExportedBean
 public class ShutdownSlaveAction implements RootAction {
 
     /**
@@ -83,6 +89,11 @@ public class ShutdownSlaveAction implements RootAction {
     public String getDisplayName() {
         PluginImpl plugin = PluginImpl.getInstance();
         if (plugin.isNodeShuttingDown(computer.getName()) && computer.hasPermission(Computer.CONNECT)) {
+            long completionTime = getEstimatedCompletionTime();
+            if (completionTime > 0) {
+                return Messages.CancelOfflineLenientlyEstimate(
+                        ShutdownDecorator.formatTime(completionTime, System.currentTimeMillis()));
+            }
             return Messages.CancelOfflineLeniently();
         } else if (computer.hasPermission(Computer.DISCONNECT)) {
             return Messages.TakeOfflineLeniently();
@@ -95,6 +106,69 @@ public class ShutdownSlaveAction implements RootAction {
         return URL;
     }
 
+    /**
+     * Gets the remote API for the lenient shutdown progress of this node.
+     * @return the API
+     */
+    public Api getApi() {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        return new Api(this);
+    }
+
+    /**
+     * Gets the name of the node.
+     * @return the node name
+     */
+    @Exported(visibility = 2)
+    public String getNodeName() {
+        return computer.getName();
+    }
+
+    /**
+     * Checks if the node is shutting down leniently.
+     * @return true if the node is shutting down, otherwise false
+     */
+    @Exported(visibility = 2)
+    public boolean isShuttingDown() {
+        return PluginImpl.getInstance().isNodeShuttingDown(computer.getName());
+    }
+
+    /**
+     * Gets the number of executors of the node that are still busy.
+     * @return the number of busy executors
+     */
+    @Exported(visibility = 2)
+    public int getBusyExecutors() {
+        return RunningWork.getBusyExecutorCount(computer.getName());
+    }
+
+    /**
+     * Gets the number of queued items currently blocked from running on the node.
+     * @return the number of blocked items
+     */
+    @Exported(visibility = 2)
+    public int getBlockedItemCount() {
+        return BlockedItems.getBlockedCount(computer.getName());
+    }
+
+    /**
+     * Gets when the node is estimated to be done with its builds.
+     * @return the time in milliseconds since the epoch, or 0 if the node is not shutting down
+     */
+    @Exported(visibility = 2)
+    public long getEstimatedCompletionTime() {
+        return DrainEstimator.getCompletionTime(computer.getName());
+    }
+
+    /**
+     * Gets the number of queue ids permitted to run on the node while it is shutting down.
+     * @return the number of permitted queue ids
+     */
+    @Exported(visibility = 2)
+    public int getPermittedQueueIdCount() {
+        return PluginImpl.getInstance().getPermittedQueuedItemIdCount(computer.getName());
+    }
+
     /**
      * Called when lenient shutdown for a specific node is activated.
      * @return redirect response
@@ -0,0 +1,91 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+
+/**
+ * Serves the lenient shutdown progress at {@code lenientshutdown/api/} and the metrics at
+ * {@code lenientshutdown/metrics}. Unlike the URL of {@link ShutdownManageLink}, which changes
+ * while lenient shutdown is active, these paths stay the same, so that they can be polled.
+ */
+@Extension
+public class ShutdownStatusAction implements RootAction {
+
+    /**
+     * URL to this action.
+     */
+    public static final String URL = "lenientshutdown";
+
+    /**
+     * Not shown anywhere.
+     * @return null
+     */
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    /**
+     * Not shown anywhere.
+     * @return null
+     */
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL;
+    }
+
+    /**
+     * Gets the remote API for the lenient shutdown progress.
+     * @return the API
+     * @see ShutdownManageLink#getApi()
+     */
+    public Api getApi() {
+        return ShutdownManageLink.getInstance().getApi();
+    }
+
+    /**
+     * Serves the metrics recorded by {@link DispatchMetrics} as JSON.
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @throws IOException if unable to write the response
+     * @see ShutdownManageLink#doMetrics(StaplerRequest2, StaplerResponse2)
+     */
+    public void doMetrics(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        ShutdownManageLink.getInstance().doMetrics(req, rsp);
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * In-memory index from upstream build (job full name and build number) to the
+ * information the dispatcher needs about it: its queue id, whether it is still
+ * building and where it was built.
+ * Looking builds up by job name and number may load
+ * them from disk, so each upstream build is resolved at most once and then kept
+ * up to date by {@link ShutdownRunListener}.
+ * <p>
+ * Completed builds are always recorded, also while nothing is draining, so that an
+ * entry resolved while the build was still running can never replace the completion.
+ * <p>
+ * When a job or folder is renamed or moved its builds are indexed under the new name, and
+ * the old name is remembered so that upstream causes recorded before still find them.
+ */
+final class UpstreamRunIndex {
+
+    /**
+     * Maximum number of entries before finished builds are pruned from the index.
+     */
+    private static final int MAX_ENTRIES = SystemProperties.getInteger(
+            UpstreamRunIndex.class.getName() + ".maxEntries", 10000);
+
+    /**
+     * Marker for upstream builds that could not be resolved.
+     */
+    private static final Entry MISSING = new Entry(-1, false, false, null);
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /**
+     * The size above which the index is pruned next, raised when mostly running builds remain.
+     */
+    private volatile int pruneAt = MAX_ENTRIES;
+
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    /**
+     * Old full name -> new full name of the jobs and folders renamed or moved since startup.
+     */
+    private final Map<String, String> moved = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Constructor, one per {@link PluginImpl} instance.
+     */
+    UpstreamRunIndex() { }
+
+    /**
+     * Gets the index of the running plugin.
+     * @return the index
+     */
+    private static UpstreamRunIndex get() {
+        return PluginImpl.getInstance().getUpstreamRunIndex();
+    }
+
+    /**
+     * Looks up the upstream build of a cause, resolving it from Jenkins only the first time.
+     * @param cause the upstream cause
+     * @return the indexed upstream build, or null if it no longer exists
+     */
+    static Entry lookup(Cause.UpstreamCause cause) {
+        UpstreamRunIndex index = get();
+        Key key = index.keyOf(cause);
+        Entry entry = index.entries.get(key);
+        if (entry == null) {
+            entry = resolve(getRun(key));
+            //The build may have completed since it was resolved, then its completion is already indexed
+            Entry existing = index.entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+            index.pruneIfNeeded();
+        }
+        if (entry == MISSING) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the indexed upstream build of a cause, without resolving it from Jenkins.
+     * Safe to call with the queue lock held.
+     * @param cause the upstream cause
+     * @return the indexed upstream build, a build that is not an {@link AbstractBuild} if it
+     *         no longer exists, or null if it is not indexed
+     */
+    static Entry peek(Cause.UpstreamCause cause) {
+        UpstreamRunIndex index = get();
+        return index.entries.get(index.keyOf(cause));
+    }
+
+    /**
+     * Records a build that has started.
+     * @param run the started build
+     */
+    static void started(Run<?, ?> run) {
+        if (!DrainActivity.isIdle()) {
+            UpstreamRunIndex index = get();
+            index.entries.put(keyOf(run), resolve(run));
+            index.pruneIfNeeded();
+        }
+    }
+
+    /**
+     * Records a build that has completed.
+     * @param run the completed build
+     */
+    static void completed(Run<?, ?> run) {
+        UpstreamRunIndex index = get();
+        Entry entry = resolve(run);
+        index.entries.put(keyOf(run), new Entry(entry.queueId, false, entry.abstractBuild, entry.builtOn));
+        index.pruneIfNeeded();
+    }
+
+    /**
+     * Indexes the builds of a renamed or moved job, or of the jobs in a renamed or moved folder,
+     * under their new name.
+     * @param oldFullName the old full name of the item
+     * @param newFullName the new full name of the item
+     */
+    static void locationChanged(String oldFullName, String newFullName) {
+        UpstreamRunIndex index = get();
+        //The new name is in use again, an item that used to have it is no longer found by it
+        index.moved.remove(newFullName);
+        index.moved.put(oldFullName, newFullName);
+        for (Map.Entry<Key, Entry> indexed : index.entries.entrySet()) {
+            Key key = indexed.getKey();
+            String job = getMovedName(key.job, oldFullName, newFullName);
+            if (job != null && index.entries.remove(key, indexed.getValue())) {
+                //A completion indexed under the new name meanwhile is newer
+                index.entries.putIfAbsent(new Key(job, key.number), indexed.getValue());
+            }
+        }
+    }
+
+    /**
+     * Notes that an item was created, so that its name no longer refers to an item that was
+     * renamed or moved away from it.
+     * @param fullName the full name of the item
+     */
+    static void created(String fullName) {
+        get().moved.remove(fullName);
+    }
+
+    /**
+     * Gets the current full name of a job that may have been renamed or moved since it was
+     * recorded, for instance in an upstream cause.
+     * @param fullName the recorded full name
+     * @return the current full name
+     */
+    static String getCurrentName(String fullName) {
+        return get().currentName(fullName);
+    }
+
+    /**
+     * Gets the name of a job after an item was renamed or moved.
+     * @param fullName the full name of the job
+     * @param oldFullName the old full name of the renamed or moved item
+     * @param newFullName the new full name of the renamed or moved item
+     * @return the new full name of the job, or null if it is not affected
+     */
+    static String getMovedName(String fullName, String oldFullName, String newFullName) {
+        if (fullName.equals(oldFullName)) {
+            return newFullName;
+        }
+        if (fullName.startsWith(oldFullName + "/")) {
+            return newFullName + fullName.substring(oldFullName.length());
+        }
+        return null;
+    }
+
+    /**
+     * Gets the external id of a build after an item was renamed or moved.
+     * @param buildId the external id of the build, as {@link Run#getExternalizableId()}
+     * @param oldFullName the old full name of the renamed or moved item
+     * @param newFullName the new full name of the renamed or moved item
+     * @return the new external id of the build, or null if it is not affected
+     */
+    static String getMovedBuildId(String buildId, String oldFullName, String newFullName) {
+        int separator = buildId.lastIndexOf('#');
+        if (separator < 0) {
+            return null;
+        }
+        String job = getMovedName(buildId.substring(0, separator), oldFullName, newFullName);
+        if (job == null) {
+            return null;
+        }
+        return job + buildId.substring(separator);
+    }
+
+    /**
+     * Forgets all indexed builds.
+     */
+    static void reset() {
+        UpstreamRunIndex index = get();
+        index.entries.clear();
+        index.moved.clear();
+        index.pruneAt = MAX_ENTRIES;
+    }
+
+    /**
+     * Gets the number of indexed builds.
+     * @return the number of entries
+     */
+    static int size() {
+        return get().entries.size();
+    }
+
+    /**
+     * Gets the current full name of a job that may have been renamed or moved since it was recorded.
+     * @param fullName the recorded full name
+     * @return the current full name
+     */
+    private String currentName(String fullName) {
+        String name = fullName;
+        //Each name is only moved away from once, the bound only guards against a racing rename
+        for (int hops = moved.size(); hops > 0; hops--) {
+            String next = null;
+            for (Map.Entry<String, String> move : moved.entrySet()) {
+                next = getMovedName(name, move.getKey(), move.getValue());
+                if (next != null) {
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            name = next;
+        }
+        return name;
+    }
+
+    /**
+     * Drops finished builds once the index has grown too large, down to half the maximum size.
+     * They are resolved again on demand if still referenced. If mostly running builds remain
+     * the next scan waits until the index has grown by another half of the maximum size.
+     */
+    private void pruneIfNeeded() {
+        if (entries.size() <= pruneAt || !pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int lowWater = MAX_ENTRIES / 2;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext() && entries.size() > lowWater) {
+                if (!iterator.next().building) {
+                    iterator.remove();
+                }
+            }
+            pruneAt = Math.max(MAX_ENTRIES, entries.size() + lowWater);
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    /**
+     * Creates the index key of a build.
+     * @param run the build
+     * @return the key
+     */
+    private static Key keyOf(Run<?, ?> run) {
+        return new Key(run.getParent().getFullName(), run.getNumber());
+    }
+
+    /**
+     * Creates the index key of the upstream build of a cause, by the current name of its job.
+     * @param cause the upstream cause
+     * @return the key
+     */
+    private Key keyOf(Cause.UpstreamCause cause) {
+        return new Key(currentName(cause.getUpstreamProject()), cause.getUpstreamBuild());
+    }
+
+    /**
+     * Loads the build of a key.
+     * @param key the key
+     * @return the build, or null if it no longer exists
+     */
+    private static Run<?, ?> getRun(Key key) {
+        Job<?, ?> job = Jenkins.get().getItemByFullName(key.job, Job.class);
+        if (job == null) {
+            return null;
+        }
+        return job.getBuildByNumber(key.number);
+    }
+
+    /**
+     * Captures the indexed information of a build.
+     * @param run the build, may be null
+     * @return the entry
+     */
+    private static Entry resolve(Run<?, ?> run) {
+        if (run == null) {
+            return MISSING;
+        }
+        if (run instanceof AbstractBuild) {
+            return new Entry(run.getQueueId(), run.isBuilding(), true, ((AbstractBuild<?, ?>)run).getBuiltOnStr());
+        }
+        return new Entry(run.getQueueId(), run.isBuilding(), false, null);
+    }
+
+    /**
+     * The indexed state of an upstream build.
+     */
+    static final class Entry {
+        private final long queueId;
+        private final boolean building;
+        private final boolean abstractBuild;
+        private final String builtOn;
+
+        /**
+         * Constructor.
+         * @param queueId the queue id of the build
+         * @param building true if the build is still building
+         * @param abstractBuild true if the build is an {@link AbstractBuild}
+         * @param builtOn the name of the node the build ran on, if known
+         */
+        private Entry(long queueId, boolean building, boolean abstractBuild, String builtOn) {
+            this.queueId = queueId;
+            this.building = building;
+            this.abstractBuild = abstractBuild;
+            this.builtOn = builtOn;
+        }
+
+        /**
+         * Gets the queue id of the build.
+         * @return the queue id
+         */
+        long getQueueId() {
+            return queueId;
+        }
+
+        /**
+         * Checks if the build is still building.
+         * @return true if building, otherwise false
+         */
+        boolean isBuilding() {
+            return building;
+        }
+
+        /**
+         * Checks if the build is an {@link AbstractBuild}.
+         * @return true if it is, otherwise false
+         */
+        boolean isAbstractBuild() {
+            return abstractBuild;
+        }
+
+        /**
+         * Gets the name of the node the build ran on.
+         * @return the node name, or null if not known
+         */
+        String getBuiltOn() {
+            return builtOn;
+        }
+
+        /**
+         * Checks if the build ran on the argument node.
+         * @param nodeName the node name to check
+         * @return true if the build ran on the node, otherwise false
+         */
+        boolean isBuiltOn(String nodeName) {
+            return builtOn != null && builtOn.equals(nodeName);
+        }
+    }
+
+    /**
+     * Identifies a build by job full name and build number.
+     */
+    private static final class Key {
+        private static final int HASH_MULTIPLIER = 31;
+
+        private final String job;
+        private final int number;
+
+        /**
+         * Constructor.
+         * @param job the full name of the job
+         * @param number the build number
+         */
+        private Key(String job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return number == other.number && job.equals(other.job);
+        }
+
+        @Override
+        public int hashCode() {
+            return job.hashCode() * HASH_MULTIPLIER + number;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown.blockcauses;
+
+import com.sonymobile.jenkins.plugins.lenientshutdown.Messages;
+import com.sonymobile.jenkins.plugins.lenientshutdown.ShutdownDecorator;
+import hudson.model.queue.CauseOfBlockage;
+
+/**
+ * Blockage used when lenient shutdown mode is active and a permitted build
+ * is not expected to finish before the lenient shutdown deadline.
+ */
+public class DeadlineBlockage extends CauseOfBlockage {
+
+    private final long deadline;
+
+    /**
+     * Constructor.
+     * @param deadline the lenient shutdown deadline in milliseconds since the epoch
+     */
+    public DeadlineBlockage(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Gets the lenient shutdown deadline.
+     * @return the deadline in milliseconds since the epoch
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.WouldNotFinishBeforeDeadline(
+                ShutdownDecorator.formatTime(deadline, System.currentTimeMillis()));
+    }
+
+}
@@ -47,8 +47,7 @@ public class CancelLenientQuietDownCommand extends CLICommand {
         ShutdownManageLink management = ShutdownManageLink.getInstance();
         Jenkins.get().checkPermission(management.getRequiredPermission());
 
-        if (management.isGoingToShutdown()) {
-            management.performToggleGoingToShutdown();
+        if (management.performCancel()) {
             stdout.println(Messages.ShutDownCanceled());
         } else {
             stderr.println(Messages.Err_NotInShutdown());
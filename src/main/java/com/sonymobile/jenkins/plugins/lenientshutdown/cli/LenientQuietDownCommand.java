@@ -48,9 +48,13 @@ public class LenientQuietDownCommand extends LenientQuietDownCommandBase {
         ShutdownManageLink management = ShutdownManageLink.getInstance();
         Jenkins.get().checkPermission(management.getRequiredPermission());
 
-        if (!management.isGoingToShutdown()) {
-            management.performToggleGoingToShutdown();
-            configure();
+        if (management.isGoingToShutdown()) {
+            stderr.println(Messages.Err_AlreadyShuttingDown());
+            return 1;
+        }
+        //Configure first, activation analyzes the queue with the configuration it finds
+        configure();
+        if (management.performActivate()) {
             stdout.println(Messages.IsAboutToShutDown());
             printShutdownConfiguration();
             return 0;
@@ -26,6 +26,7 @@
 package com.sonymobile.jenkins.plugins.lenientshutdown.cli;
 
 import java.util.Arrays;
+import java.util.List;
 
 import org.kohsuke.args4j.Option;
 
@@ -79,21 +80,29 @@ public abstract class LenientQuietDownCommandBase extends CLICommand {
     private String whiteListedProjects;
 
     /**
-     * transfer the options to the configuration.
+     * Minutes after activation by which lenient shutdown should be done, null to keep the configured deadline.
+     *
+     */
+    @Option(name = "-d", aliases = { "--deadline" },
+            usage = "Only start builds that are expected to finish within this many minutes, 0 for no deadline.",
+            required = false)
+    private Integer drainDeadlineMinutes;
+
+    /**
+     * transfer the options to the configuration, all of them published at once.
      *
      */
     protected void configure() {
         ShutdownConfiguration config = ShutdownConfiguration.getInstance();
-        if (Util.fixEmpty(message) != null) {
-            config.setShutdownMessage(message);
-            config.save();
-        }
-        config.setAllowAllQueuedItems(allowAllQueuedItemsOption);
-        config.setAllowWhiteListedProjects(allowWhiteListedProjectsOption);
+        String newMessage = Util.fixEmpty(message);
+        List<String> projects = null;
         if (whiteListedProjects != null) {
-            config.getWhiteListedProjects().clear();
-            config.getWhiteListedProjects()
-                    .addAll(Arrays.asList(whiteListedProjects.split(DELIMETER)));
+            projects = Arrays.asList(whiteListedProjects.split(DELIMETER));
+        }
+        config.applyCommandOptions(newMessage, allowAllQueuedItemsOption, allowWhiteListedProjectsOption,
+                drainDeadlineMinutes, projects);
+        if (newMessage != null || drainDeadlineMinutes != null) {
+            config.save();
         }
     }
 
@@ -116,5 +125,9 @@ public abstract class LenientQuietDownCommandBase extends CLICommand {
         } else {
             stdout.println(Messages.WhiteListedProjectsNotAllowed());
         }
+
+        if (config.getDrainDeadlineMinutes() > 0) {
+            stdout.println(Messages.DrainDeadline(config.getDrainDeadlineMinutes()));
+        }
     }
 }
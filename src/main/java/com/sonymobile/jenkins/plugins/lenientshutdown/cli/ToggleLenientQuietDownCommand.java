@@ -52,10 +52,11 @@ public class ToggleLenientQuietDownCommand extends LenientQuietDownCommandBase {
         ShutdownManageLink management = ShutdownManageLink.getInstance();
         Jenkins.get().checkPermission(management.getRequiredPermission());
 
-        management.performToggleGoingToShutdown();
-
+        //Configure first, activation analyzes the queue with the configuration it finds
         configure();
 
+        management.performToggleGoingToShutdown();
+
         if (management.isGoingToShutdown()) {
             stdout.println(Messages.IsAboutToShutDown());
             printShutdownConfiguration();
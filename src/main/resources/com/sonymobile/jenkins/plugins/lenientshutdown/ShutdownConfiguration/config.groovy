@@ -46,4 +46,13 @@ f.section(title:_("Lenient Shutdown")) {
     f.entry(field: 'allowAllJobs', title:_("Allow any Job to finish, including pipelines")) {
       f.checkbox()
     }
+    f.entry(field: 'precomputeDownstreamClosure', title:_("Precompute downstream projects")) {
+      f.checkbox()
+    }
+    f.entry(field: 'drainDeadlineMinutes', title:_("Drain deadline in minutes")) {
+      f.number(clazz: 'non-negative-number', min: 0)
+    }
+    f.entry(field: 'longestChainFirst', title:_("Start permitted builds with the longest chains first")) {
+      f.checkbox()
+    }
 }
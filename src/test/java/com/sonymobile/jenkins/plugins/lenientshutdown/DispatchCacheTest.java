@@ -0,0 +1,106 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+
+/**
+ * Tests for {@link DispatchCache}.
+ */
+@WithJenkins
+class DispatchCacheTest {
+
+    private static final int QUIET_PERIOD = 600;
+
+    private JenkinsRule j;
+    private Queue.Item item;
+
+    /**
+     * Creates an item to cache decisions for.
+     * @param rule the jenkins rule
+     * @throws Exception if something goes wrong
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) throws Exception {
+        j = rule;
+        FreeStyleProject project = j.createFreeStyleProject();
+        item = new Queue.WaitingItem(Calendar.getInstance(), project, Collections.<Action>emptyList());
+    }
+
+    /**
+     * Tests that decisions are reused until the drain epoch advances.
+     */
+    @Test
+    void testDiscardedWhenEpochAdvances() {
+        DispatchCache.ItemDecisions decisions = DispatchCache.forItem(item);
+        assertSame(decisions, DispatchCache.forItem(item));
+
+        DrainActivity.advanceEpoch();
+        assertNotSame(decisions, DispatchCache.forItem(item));
+    }
+
+    /**
+     * Tests that decisions are discarded when an item enters the queue, and by node changes.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testDiscardedWhenQueueOrNodesChange() throws Exception {
+        DispatchCache.ItemDecisions decisions = DispatchCache.forItem(item);
+        j.createFreeStyleProject().scheduleBuild2(QUIET_PERIOD);
+        DispatchCache.ItemDecisions afterQueueChange = DispatchCache.forItem(item);
+        assertNotSame(decisions, afterQueueChange);
+
+        NodeCandidateIndex.invalidate();
+        assertNotSame(afterQueueChange, DispatchCache.forItem(item));
+    }
+
+    /**
+     * Tests that admitting an item on a draining node does not discard the cached decisions.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testKeptWhenItemIsAdmittedOnNode() throws Exception {
+        String nodeName = j.createOnlineSlave().getNodeName();
+        PluginImpl plugin = PluginImpl.getInstance();
+        plugin.toggleNodeShuttingDown(nodeName);
+        DispatchCache.ItemDecisions decisions = DispatchCache.forItem(item);
+
+        plugin.addPermittedUpstreamQueueId(item.getId(), nodeName);
+        assertSame(decisions, DispatchCache.forItem(item));
+        plugin.toggleNodeShuttingDown(nodeName);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the queue dispatcher and {@link QueueUtils} hot paths against a synthetic queue.
+ * <p>
+ * The queue items are created in memory and fed to the {@link QueueTracker} without being
+ * scheduled, so their number does not depend on executors. The agents report themselves
+ * online without being launched, so the dispatcher considers all of them like connected
+ * agents while the benchmark does not start a process per agent. Global lenient shutdown is
+ * active and the first agent is shutting down leniently.
+ */
+@JmhBenchmark
+public class DispatcherBenchmark {
+
+    /**
+     * A Jenkins instance with the synthetic queue, nodes and upstream builds.
+     */
+    @State(Scope.Benchmark)
+    public static class Dispatcher extends JmhBenchmarkState {
+
+        // CS IGNORE VisibilityModifier FOR NEXT 17 LINES. REASON: JMH parameters must be public
+        /**
+         * Number of queued items.
+         */
+        @Param({"1000", "10000", "50000" })
+        public int itemCount;
+
+        /**
+         * Number of agents.
+         */
+        @Param({"10", "100", "1000" })
+        public int nodeCount;
+
+        /**
+         * Number of upstream causes per item.
+         */
+        @Param({"1", "4" })
+        public int fanIn;
+
+        private static final int PROJECT_COUNT = 20;
+        private static final int LABEL_COUNT = 10;
+        private static final int UPSTREAM_BUILDS = 8;
+
+        private BuildPreventer buildPreventer;
+        private List<Queue.BuildableItem> items;
+        private Node drainingNode;
+        private int next;
+
+        @Override
+        public void setup() throws Exception {
+            Jenkins jenkins = getJenkins();
+            jenkins.setQuietPeriod(0);
+
+            List<FreeStyleBuild> upstreamBuilds = new ArrayList<FreeStyleBuild>();
+            FreeStyleProject upstream = jenkins.createProject(FreeStyleProject.class, "upstream");
+            for (int i = 0; i < UPSTREAM_BUILDS; i++) {
+                upstreamBuilds.add(upstream.scheduleBuild2(0).get());
+            }
+            jenkins.setNumExecutors(0);
+
+            List<Node> nodes = new ArrayList<Node>();
+            for (int i = 0; i < nodeCount; i++) {
+                OnlineAgent agent = new OnlineAgent("node" + i);
+                agent.setLabelString("label" + (i % LABEL_COUNT));
+                nodes.add(agent);
+            }
+            jenkins.setNodes(nodes);
+            drainingNode = nodes.get(0);
+
+            List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+            for (int i = 0; i < PROJECT_COUNT; i++) {
+                FreeStyleProject project = jenkins.createProject(FreeStyleProject.class, "project" + i);
+                project.setAssignedLabel(Label.get("label" + (i % LABEL_COUNT)));
+                projects.add(project);
+            }
+
+            ShutdownManageLink shutdownManageLink = ShutdownManageLink.getInstance();
+            shutdownManageLink.performActivate();
+            for (int i = 0; i < UPSTREAM_BUILDS; i += 2) {
+                shutdownManageLink.addPermittedUpstreamQueueId(upstreamBuilds.get(i).getQueueId());
+            }
+            PluginImpl.getInstance().toggleNodeShuttingDown(drainingNode.getNodeName());
+
+            QueueTracker.Listener tracker = new QueueTracker.Listener();
+            items = new ArrayList<Queue.BuildableItem>();
+            for (int i = 0; i < itemCount; i++) {
+                List<Cause> causes = new ArrayList<Cause>();
+                for (int k = 0; k < fanIn; k++) {
+                    causes.add(new Cause.UpstreamCause(upstreamBuilds.get((i + k) % UPSTREAM_BUILDS)));
+                }
+                List<Action> actions = Collections.<Action>singletonList(new CauseAction(causes));
+                Queue.WaitingItem waiting = new Queue.WaitingItem(Calendar.getInstance(),
+                        projects.get(i % PROJECT_COUNT), actions);
+                Queue.BuildableItem item = new Queue.BuildableItem(waiting);
+                tracker.onEnterBuildable(item);
+                items.add(item);
+            }
+            buildPreventer = new BuildPreventer();
+        }
+
+        /**
+         * Gets the next item, going round the queue.
+         * @return a queued item
+         */
+        private Queue.BuildableItem nextItem() {
+            Queue.BuildableItem item = items.get(next);
+            next++;
+            if (next == items.size()) {
+                next = 0;
+            }
+            return item;
+        }
+    }
+
+    /**
+     * An agent that is online without being launched.
+     */
+    private static final class OnlineAgent extends Slave {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates an agent.
+         * @param name the node name
+         * @throws Descriptor.FormException if the name is invalid
+         * @throws IOException if the agent cannot be created
+         */
+        OnlineAgent(String name) throws Descriptor.FormException, IOException {
+            super(name, "/tmp/" + name, new JNLPLauncher());
+        }
+
+        @Override
+        public Computer createComputer() {
+            return new OnlineComputer(this);
+        }
+
+        @Override
+        public DumbSlave.DescriptorImpl getDescriptor() {
+            return Jenkins.get().getDescriptorByType(DumbSlave.DescriptorImpl.class);
+        }
+    }
+
+    /**
+     * The computer of an {@link OnlineAgent}, online although it has no channel.
+     */
+    private static final class OnlineComputer extends SlaveComputer {
+
+        /**
+         * Creates the computer.
+         * @param agent the agent
+         */
+        OnlineComputer(Slave agent) {
+            super(agent);
+        }
+
+        @Override
+        public boolean isOffline() {
+            return false;
+        }
+    }
+
+    /**
+     * The global lenient shutdown dispatcher check of one item.
+     * @param dispatcher the state
+     * @return the blockage, if any
+     */
+    @Benchmark
+    public CauseOfBlockage canRun(Dispatcher dispatcher) {
+        return dispatcher.buildPreventer.canRun(dispatcher.nextItem());
+    }
+
+    /**
+     * The node lenient shutdown dispatcher check of one item on the draining node.
+     * @param dispatcher the state
+     * @return the blockage, if any
+     */
+    @Benchmark
+    public CauseOfBlockage canTake(Dispatcher dispatcher) {
+        return dispatcher.buildPreventer.canTake(dispatcher.drainingNode, dispatcher.nextItem());
+    }
+
+    /**
+     * Checks if another node than the draining one can build one item.
+     * @param dispatcher the state
+     * @return true if another node can build the item
+     */
+    @Benchmark
+    public boolean canOtherNodeBuild(Dispatcher dispatcher) {
+        return QueueUtils.canOtherNodeBuild(dispatcher.nextItem(), dispatcher.drainingNode);
+    }
+
+    /**
+     * Finds the queued items permitted by global lenient shutdown.
+     * @param dispatcher the state
+     * @return the permitted ids
+     */
+    @Benchmark
+    public Set<Long> getPermittedQueueItemIds(Dispatcher dispatcher) {
+        return QueueUtils.getPermittedQueueItemIds();
+    }
+
+    /**
+     * Finds the queued items permitted on the draining node.
+     * @param dispatcher the state
+     * @return the permitted ids
+     */
+    @Benchmark
+    public Set<Long> getNodePermittedQueueItemIds(Dispatcher dispatcher) {
+        return QueueUtils.getPermittedQueueItemIds(dispatcher.drainingNode.getNodeName());
+    }
+}
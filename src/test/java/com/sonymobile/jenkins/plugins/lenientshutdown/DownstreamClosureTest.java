@@ -0,0 +1,146 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.BuildTrigger;
+import jenkins.model.Jenkins;
+
+/**
+ * Tests for {@link DownstreamClosure}.
+ */
+@WithJenkins
+class DownstreamClosureTest {
+
+    private static final int JOB_SLEEP_TIME = 10000;
+    private static final int QUIET_PERIOD = 600;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private JenkinsRule j;
+    private FreeStyleProject parent;
+    private FreeStyleProject child;
+    private QueueTaskFuture<FreeStyleBuild> parentFuture;
+    private FreeStyleBuild parentBuild;
+
+    /**
+     * Creates a parent project triggering a child project and starts a build of the parent.
+     * @param rule the jenkins rule
+     * @throws Exception if something goes wrong
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) throws Exception {
+        j = rule;
+        j.jenkins.setQuietPeriod(0);
+        parent = j.createFreeStyleProject();
+        child = j.createFreeStyleProject();
+        parent.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        parent.getPublishersList().add(new BuildTrigger(child.getName(), Result.SUCCESS));
+        Jenkins.get().rebuildDependencyGraph();
+        parentFuture = parent.scheduleBuild2(0);
+        parentBuild = parentFuture.waitForStart();
+    }
+
+    /**
+     * Drops the closure and lets the parent build finish.
+     * @throws Exception if something goes wrong
+     */
+    @AfterEach
+    void afterEach() throws Exception {
+        DownstreamClosure.clear();
+        Jenkins.get().getQueue().clear();
+        parentFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that an item triggered by the running parent is reachable, and that other items are not.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testChildOfRunningParentIsReachable() throws Exception {
+        DownstreamClosure.activate();
+
+        assertTrue(DownstreamClosure.isReachable(queueTriggered(child, parentBuild)));
+
+        FreeStyleProject other = j.createFreeStyleProject();
+        other.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item untriggered = Jenkins.get().getQueue().getItem(other);
+        assertNotNull(untriggered);
+        assertFalse(DownstreamClosure.isReachable(untriggered));
+
+        DownstreamClosure.clear();
+        assertFalse(DownstreamClosure.isReachable(Jenkins.get().getQueue().getItem(child)));
+    }
+
+    /**
+     * Tests that the closure follows the permitted builds rather than their projects: an item
+     * triggered by another build of a permitted project is not reachable.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testFollowsPermittedBuilds() throws Exception {
+        FreeStyleProject other = j.createFreeStyleProject();
+        FreeStyleBuild permitted = j.buildAndAssertSuccess(other);
+        FreeStyleBuild notPermitted = j.buildAndAssertSuccess(other);
+        DownstreamClosure.activate();
+        ShutdownManageLink.getInstance().addPermittedUpstreamQueueId(permitted.getQueueId());
+        DownstreamClosure.started(permitted);
+        DownstreamClosure.started(notPermitted);
+
+        FreeStyleProject grandChild = j.createFreeStyleProject();
+        assertFalse(DownstreamClosure.isReachable(queueTriggered(grandChild, notPermitted)));
+        Jenkins.get().getQueue().clear();
+        assertTrue(DownstreamClosure.isReachable(queueTriggered(grandChild, permitted)));
+    }
+
+    /**
+     * Queues an item of argument project caused by argument build.
+     * @param project the project
+     * @param upstream the upstream build
+     * @return the queued item
+     */
+    private Queue.Item queueTriggered(FreeStyleProject project, FreeStyleBuild upstream) {
+        project.scheduleBuild2(QUIET_PERIOD, new Cause.UpstreamCause(upstream));
+        Queue.Item item = Jenkins.get().getQueue().getItem(project);
+        assertNotNull(item);
+        return item;
+    }
+}
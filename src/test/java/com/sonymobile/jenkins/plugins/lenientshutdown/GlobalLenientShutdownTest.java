@@ -33,15 +33,27 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.text.DateFormat;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import com.sonymobile.jenkins.plugins.lenientshutdown.blockcauses.DeadlineBlockage;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.security.ACL;
+import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.matrixauth.AuthorizationType;
 import org.jenkinsci.plugins.matrixauth.PermissionEntry;
 import org.junit.jupiter.api.BeforeEach;
@@ -56,9 +68,12 @@ import org.htmlunit.html.HtmlPage;
 import hudson.model.AbstractProject;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.ManagementLink;
 import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Queue.Item;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueSorter;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
 import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
@@ -68,6 +83,7 @@ import hudson.plugins.parameterizedtrigger.ResultCondition;
 import hudson.plugins.parameterizedtrigger.TriggerBuilder;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
 import hudson.tasks.BuildTrigger;
+import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
@@ -80,6 +96,7 @@ import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 class GlobalLenientShutdownTest {
 
     private static final int JOB_SLEEP_TIME = 5000;
+    private static final int CHILD_SLEEP_TIME = 1000;
 
     /**
      * Jenkins rule instance.
@@ -88,7 +105,9 @@ class GlobalLenientShutdownTest {
 
     private static final int TIMEOUT_SECONDS = 60;
     private static final int QUIET_PERIOD = 5;
+    private static final int LONG_QUIET_PERIOD = 600;
     private static final int NUM_EXECUTORS = 4;
+    private static final int RACE_ROUNDS = 50;
 
     /**
      * Changes the number of executors on the Jenkins master.
@@ -128,6 +147,143 @@ class GlobalLenientShutdownTest {
         assertThat(ShutdownManageLink.getInstance().isGoingToShutdown(), is(false));
     }
 
+    /**
+     * Tests that activating and cancelling are idempotent and move through the drain states
+     * with an increasing epoch.
+     */
+    @Test
+    void testActivateAndCancelAreIdempotent() {
+        ShutdownManageLink shutdownManage = ShutdownManageLink.getInstance();
+        long initialEpoch = shutdownManage.getDrainStatus().getEpoch();
+
+        assertTrue(shutdownManage.performActivate());
+        //Nothing queued or running, so nothing to drain
+        assertThat(shutdownManage.getDrainStatus().getState(), is(DrainState.DRAINED));
+        long activeEpoch = shutdownManage.getDrainStatus().getEpoch();
+        assertTrue(activeEpoch > initialEpoch);
+        assertFalse(shutdownManage.performActivate());
+        assertEquals(activeEpoch, shutdownManage.getDrainStatus().getEpoch());
+
+        assertTrue(shutdownManage.performCancel());
+        assertThat(shutdownManage.getDrainStatus().getState(), is(DrainState.CANCELLED));
+        assertTrue(shutdownManage.getDrainStatus().getEpoch() > activeEpoch);
+        assertFalse(shutdownManage.performCancel());
+        assertFalse(shutdownManage.isGoingToShutdown());
+    }
+
+    /**
+     * Tests that lenient shutdown is drained once the last permitted item is cancelled in the queue.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testDrainedWhenLastPermittedItemIsCancelled() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.scheduleBuild2(LONG_QUIET_PERIOD);
+        Item item = j.jenkins.getQueue().getItem(project);
+        ShutdownConfiguration.getInstance().setAllowAllQueuedItems(true);
+
+        toggleLenientShutdown();
+        ShutdownManageLink shutdownManage = ShutdownManageLink.getInstance();
+        assertTrue(shutdownManage.isPermittedQueueId(item.getId()));
+        assertThat(shutdownManage.getDrainState(), is(DrainState.DRAINING));
+
+        j.jenkins.getQueue().cancel(item);
+        QueueIdPruner.prune();
+        assertThat(shutdownManage.getDrainState(), is(DrainState.DRAINED));
+        assertFalse(shutdownManage.isPermittedQueueId(item.getId()));
+    }
+
+    /**
+     * Tests that a cancel racing with an activation never leaves permitted items behind.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testCancelWhileAnalyzingForgetsPermitted() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.scheduleBuild2(LONG_QUIET_PERIOD);
+        Item item = j.jenkins.getQueue().getItem(project);
+        ShutdownConfiguration.getInstance().setAllowAllQueuedItems(true);
+        ShutdownManageLink shutdownManage = ShutdownManageLink.getInstance();
+
+        for (int round = 0; round < RACE_ROUNDS; round++) {
+            boolean[] activated = new boolean[1];
+            Thread activation = new Thread(() -> activated[0] = shutdownManage.performActivate());
+            activation.start();
+            while (!shutdownManage.performCancel() && activation.isAlive()) {
+                Thread.yield();
+            }
+            activation.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+            if (shutdownManage.isGoingToShutdown()) {
+                assertTrue(activated[0]);
+                assertTrue(shutdownManage.isPermittedQueueId(item.getId()));
+                shutdownManage.performCancel();
+            }
+            assertFalse(shutdownManage.isPermittedQueueId(item.getId()), "Round " + round);
+            assertFalse(shutdownManage.isActiveQueueIds(), "Round " + round);
+        }
+    }
+
+    /**
+     * Tests that a permitted build started while the last one completes never leaves lenient
+     * shutdown drained while it is running.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testNotDrainedWhileBuildStartsAsLastCompletes() throws Exception {
+        ShutdownManageLink shutdownManage = ShutdownManageLink.getInstance();
+        assertTrue(shutdownManage.performActivate());
+
+        for (int round = 0; round < RACE_ROUNDS; round++) {
+            long completing = 2L * round;
+            long starting = completing + 1;
+            shutdownManage.addActiveQueueId(completing);
+            Thread completion = new Thread(() -> shutdownManage.removeActiveQueueId(completing));
+            completion.start();
+            shutdownManage.addActiveQueueId(starting);
+            completion.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+            assertThat("Round " + round, shutdownManage.getDrainState(), is(DrainState.DRAINING));
+            shutdownManage.removeActiveQueueId(starting);
+            assertThat("Round " + round, shutdownManage.getDrainState(), is(DrainState.DRAINED));
+        }
+    }
+
+    /**
+     * Tests that a white listed project expected to run past the drain deadline is blocked,
+     * while one expected to finish in time is not.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testBlocksBuildThatWouldMissDeadline() throws Exception {
+        FreeStyleProject running = j.createFreeStyleProject();
+        running.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> future = running.scheduleBuild2(0);
+        future.waitForStart();
+
+        ShutdownConfiguration configuration = ShutdownConfiguration.getInstance();
+        configuration.setAllowAllJobs(true);
+        configuration.setAllowWhiteListedProjects(true);
+        configuration.setWhiteListedProjects(List.of("slow", "fast"));
+        configuration.setDrainDeadlineMinutes(1);
+        toggleLenientShutdown();
+        assertTrue(ShutdownManageLink.getInstance().getDrainDeadline() > 0);
+
+        WorkflowJobMock slow = mock(WorkflowJobMock.class);
+        when(slow.getFullName()).thenReturn("slow");
+        when(slow.getEstimatedDuration()).thenReturn(TimeUnit.HOURS.toMillis(1));
+        WorkflowJobMock fast = mock(WorkflowJobMock.class);
+        when(fast.getFullName()).thenReturn("fast");
+        when(fast.getEstimatedDuration()).thenReturn(TimeUnit.SECONDS.toMillis(1));
+
+        BuildPreventer preventer = new BuildPreventer();
+        CauseOfBlockage blockage = preventer.canRun(new Queue.WaitingItem(Calendar.getInstance(), slow, List.of()));
+        assertTrue(blockage instanceof DeadlineBlockage, "Not blocked by the deadline: " + blockage);
+        assertNull(preventer.canRun(new Queue.WaitingItem(Calendar.getInstance(), fast, List.of())));
+
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
     /**
      * Tests that all builds are started as normal when the shutdown mode has
      * not been initiated.
@@ -290,6 +446,198 @@ class GlobalLenientShutdownTest {
         assertTrue(managePage.asNormalizedText().contains(ShutdownManageLink.getInstance().getDisplayName()));
     }
 
+    /**
+     * Tests that blocked builds are counted by the metrics endpoint.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testMetricsCountBlockedBuilds() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        toggleLenientShutdown();
+        project.scheduleBuild2(0);
+        waitForBlockedItem(project, TIMEOUT_SECONDS);
+
+        WebClient w = j.createWebClient();
+        w.login("alice");
+        JSONObject metrics = w.getJSON(ShutdownStatusAction.URL + "/metrics")
+                .getJSONObject();
+        JSONObject canRun = metrics.getJSONObject("canRun");
+        assertTrue(canRun.getLong("count") > 0);
+        assertTrue(canRun.getJSONObject("decisions").getLong("BLOCKED") > 0);
+        assertEquals(DrainState.DRAINED.name(), metrics.getString("drainState"));
+    }
+
+    /**
+     * Tests that the remote API reports the drain state and blocked items, filtered by tree,
+     * on the same path before and after lenient shutdown is activated.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testApiReportsDrainProgress() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        WebClient w = j.createWebClient();
+        w.login("alice");
+        JSONObject inactive = w.getJSON(ShutdownStatusAction.URL + "/api/json").getJSONObject();
+        assertEquals(DrainState.INACTIVE.name(), inactive.getString("drainState"));
+
+        toggleLenientShutdown();
+        project.scheduleBuild2(0);
+        waitForBlockedItem(project, TIMEOUT_SECONDS);
+
+        JSONObject api = w.getJSON(ShutdownStatusAction.URL
+                + "/api/json?tree=drainState,blockedItemCount").getJSONObject();
+        assertEquals(DrainState.DRAINED.name(), api.getString("drainState"));
+        assertEquals(1, api.getInt("blockedItemCount"));
+        assertFalse(api.has("epoch"));
+    }
+
+    /**
+     * Tests that the drain sorter orders longer downstream chains first, once their lengths are known,
+     * and is uninstalled again on cancel.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testDrainSorterOrdersLongestChainFirst() throws Exception {
+        FreeStyleProject single = j.createFreeStyleProject("single");
+        FreeStyleProject parent = j.createFreeStyleProject("parent");
+        FreeStyleProject child = j.createFreeStyleProject("child");
+        child.getBuildersList().add(new SleepBuilder(CHILD_SLEEP_TIME));
+        parent.getPublishersList().add(new BuildTrigger(child.getName(), Result.SUCCESS));
+        Jenkins.get().rebuildDependencyGraph();
+        //Builds once to get estimated durations
+        j.buildAndAssertSuccess(single);
+        j.buildAndAssertSuccess(parent);
+        j.waitUntilNoActivity();
+        ShutdownConfiguration.getInstance().setLongestChainFirst(true);
+
+        toggleLenientShutdown();
+        QueueSorter sorter = j.jenkins.getQueue().getSorter();
+        assertTrue(sorter instanceof DrainSorter);
+
+        List<Queue.BuildableItem> buildables = new ArrayList<>();
+        buildables.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), single, List.of())));
+        buildables.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), parent, List.of())));
+        //The chain lengths are computed outside the queue lock after the first sort
+        assertTrue(waitFor(MAX_DURATION, () -> {
+            sorter.sortBuildableItems(buildables);
+            return buildables.get(0).task == parent;
+        }), "Longest chain not ordered first");
+
+        //The wrapped sorter is installed again
+        toggleLenientShutdown();
+        assertFalse(j.jenkins.getQueue().getSorter() instanceof DrainSorter);
+        buildables.clear();
+        buildables.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), single, List.of())));
+        buildables.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), parent, List.of())));
+        sorter.sortBuildableItems(buildables);
+        assertEquals(single, buildables.get(0).task);
+        assertEquals(0, ShutdownManageLink.getInstance().getPredictedCompletionTime());
+    }
+
+    /**
+     * Tests that a sorter installed while lenient shutdown is active is kept when it is cancelled,
+     * and wrapped when lenient shutdown is activated again, then installed again on cancel.
+     */
+    @Test
+    void testDrainSorterKeepsSorterInstalledMeanwhile() {
+        ShutdownConfiguration.getInstance().setLongestChainFirst(true);
+        toggleLenientShutdown();
+        QueueSorter other = mock(QueueSorter.class);
+        j.jenkins.getQueue().setSorter(other);
+
+        toggleLenientShutdown();
+        assertSame(other, j.jenkins.getQueue().getSorter());
+
+        toggleLenientShutdown();
+        QueueSorter sorter = j.jenkins.getQueue().getSorter();
+        assertTrue(sorter instanceof DrainSorter);
+        List<Queue.BuildableItem> buildables = new ArrayList<>();
+        sorter.sortBuildableItems(buildables);
+        verify(other).sortBuildableItems(buildables);
+
+        toggleLenientShutdown();
+        assertSame(other, j.jenkins.getQueue().getSorter());
+    }
+
+    /**
+     * Tests that an estimate is shown while lenient shutdown is active and running builds remain.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testEstimatedCompletionTime() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture build = project.scheduleBuild2(0);
+        build.waitForStart();
+
+        long before = System.currentTimeMillis();
+        toggleLenientShutdown();
+        assertTrue(ShutdownManageLink.getInstance().getEstimatedCompletionTime() >= before);
+        assertNotNull(ShutdownDecorator.getInstance().getEstimatedCompletion());
+
+        toggleLenientShutdown();
+        assertEquals(0, ShutdownManageLink.getInstance().getEstimatedCompletionTime());
+        build.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that the banner is only rendered while lenient shutdown is active, escaped and reused.
+     */
+    @Test
+    void testBannerIsEscapedAndCached() {
+        ShutdownDecorator decorator = ShutdownDecorator.getInstance();
+        ShutdownConfiguration.getInstance().setShutdownMessage("<b>Going down</b>");
+        assertNull(decorator.getBannerHtml());
+
+        toggleLenientShutdown();
+        String bannerHtml = decorator.getBannerHtml();
+        assertTrue(bannerHtml.contains("&lt;b&gt;Going down&lt;/b&gt;"));
+        assertSame(bannerHtml, decorator.getBannerHtml());
+
+        ShutdownConfiguration.getInstance().setShutdownMessage("Going down");
+        assertTrue(decorator.getBannerHtml().contains(">Going down<"));
+
+        toggleLenientShutdown();
+        assertNull(decorator.getBannerHtml());
+    }
+
+    /**
+     * Tests that the estimate shows the date when it is not today.
+     */
+    @Test
+    void testEstimateShowsDateWhenNotToday() {
+        long now = System.currentTimeMillis();
+        assertEquals(DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date(now)),
+                ShutdownDecorator.formatTime(now, now));
+        long later = now + TimeUnit.DAYS.toMillis(2);
+        assertEquals(DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date(later)),
+                ShutdownDecorator.formatTime(later, now));
+    }
+
+    /**
+     * Tests that the resolved singletons are the registered ones, also after a restart.
+     * @throws Throwable if something goes wrong
+     */
+    @Test
+    void testSingletonsFollowRestart() throws Throwable {
+        ShutdownManageLink link = ShutdownManageLink.getInstance();
+        ShutdownConfiguration configuration = ShutdownConfiguration.getInstance();
+        PluginImpl plugin = PluginImpl.getInstance();
+        assertSame(ManagementLink.all().get(ShutdownManageLink.class), link);
+        assertSame(GlobalConfiguration.all().get(ShutdownConfiguration.class), configuration);
+        assertSame(j.jenkins.getPlugin(PluginImpl.class), plugin);
+
+        j.restart();
+
+        assertNotSame(link, ShutdownManageLink.getInstance());
+        assertNotSame(configuration, ShutdownConfiguration.getInstance());
+        assertNotSame(plugin, PluginImpl.getInstance());
+        assertSame(ManagementLink.all().get(ShutdownManageLink.class), ShutdownManageLink.getInstance());
+        assertSame(GlobalConfiguration.all().get(ShutdownConfiguration.class), ShutdownConfiguration.getInstance());
+        assertSame(j.jenkins.getPlugin(PluginImpl.class), PluginImpl.getInstance());
+    }
+
     /**
      * Tests that projects that are in queue when lenient shutdown is enabled
      * are allowed to build if they have a completed upstream project.
@@ -0,0 +1,107 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.OfflineCause;
+
+/**
+ * Tests for {@link NodeCandidateIndex}.
+ */
+@WithJenkins
+class NodeCandidateIndexTest {
+
+    private JenkinsRule j;
+    private DumbSlave labeled;
+    private DumbSlave exclusive;
+    private Label label;
+
+    /**
+     * Creates a labeled node and an exclusive node.
+     * @param rule the jenkins rule
+     * @throws Exception if something goes wrong
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) throws Exception {
+        j = rule;
+        label = Label.get("candidate");
+        labeled = j.createOnlineSlave(label);
+        exclusive = j.createOnlineSlave(label);
+        exclusive.setMode(Node.Mode.EXCLUSIVE);
+        NodeCandidateIndex.invalidate();
+    }
+
+    /**
+     * Tests that exclusive nodes only take labeled items.
+     */
+    @Test
+    void testExclusiveNodesOnlyForLabels() {
+        List<Node> unlabeled = NodeCandidateIndex.getCandidates(null);
+        assertTrue(unlabeled.contains(labeled));
+        assertFalse(unlabeled.contains(exclusive));
+        assertTrue(NodeCandidateIndex.getCandidates(label).contains(exclusive));
+    }
+
+    /**
+     * Tests that the candidates are cached until the index is invalidated by toggling a node.
+     */
+    @Test
+    void testInvalidatedWhenNodeIsToggled() {
+        List<Node> before = NodeCandidateIndex.getCandidates(label);
+        assertSame(before, NodeCandidateIndex.getCandidates(label));
+        long version = NodeCandidateIndex.getVersion();
+
+        PluginImpl plugin = PluginImpl.getInstance();
+        plugin.toggleNodeShuttingDown(labeled.getNodeName());
+        assertNotEquals(version, NodeCandidateIndex.getVersion());
+        assertFalse(NodeCandidateIndex.getCandidates(label).contains(labeled));
+
+        plugin.toggleNodeShuttingDown(labeled.getNodeName());
+        assertTrue(NodeCandidateIndex.getCandidates(label).contains(labeled));
+    }
+
+    /**
+     * Tests that a node set temporarily offline is no longer a candidate.
+     */
+    @Test
+    void testInvalidatedWhenNodeGoesOffline() {
+        assertTrue(NodeCandidateIndex.getCandidates(label).contains(labeled));
+        labeled.toComputer().setTemporaryOfflineCause(new OfflineCause.ByCLI("test"));
+        assertFalse(NodeCandidateIndex.getCandidates(label).contains(labeled));
+    }
+}
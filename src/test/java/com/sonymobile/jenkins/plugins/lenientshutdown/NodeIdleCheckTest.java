@@ -0,0 +1,110 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static com.sonymobile.jenkins.plugins.lenientshutdown.LenientShutdownAssert.isTemporarilyOffline;
+import static com.sonymobile.jenkins.plugins.lenientshutdown.LenientShutdownAssert.waitFor;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.DumbSlave;
+
+/**
+ * Tests for {@link NodeIdleCheck}.
+ */
+@WithJenkins
+class NodeIdleCheckTest {
+
+    private static final int JOB_SLEEP_TIME = 3000;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    /**
+     * Well below the fixed delay the node was set offline with before.
+     */
+    private static final Duration PROMPTLY = Duration.ofSeconds(5);
+
+    private JenkinsRule j;
+    private DumbSlave draining;
+    private DumbSlave other;
+
+    /**
+     * Creates the nodes.
+     * @param rule the jenkins rule
+     * @throws Exception if something goes wrong
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) throws Exception {
+        j = rule;
+        j.jenkins.setQuietPeriod(0);
+        draining = j.createOnlineSlave();
+        other = j.createOnlineSlave();
+    }
+
+    /**
+     * Tests that a node shutting down leniently goes offline as soon as its last build is done,
+     * while a node that is not shutting down stays online.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testOfflineAsSoonAsIdle() throws Exception {
+        QueueTaskFuture<FreeStyleBuild> drainingBuild = scheduleOn(draining);
+        QueueTaskFuture<FreeStyleBuild> otherBuild = scheduleOn(other);
+        drainingBuild.waitForStart();
+        otherBuild.waitForStart();
+
+        PluginImpl.getInstance().setNodeOffline(draining.toComputer());
+        assertTrue(PluginImpl.getInstance().isNodeShuttingDown(draining.getNodeName()));
+        assertFalse(isTemporarilyOffline(draining));
+
+        drainingBuild.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        otherBuild.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(waitFor(PROMPTLY, () -> isTemporarilyOffline(draining)), "Node was not set offline promptly");
+        assertFalse(isTemporarilyOffline(other));
+    }
+
+    /**
+     * Schedules a short build on argument node.
+     * @param node the node
+     * @return the build future
+     * @throws Exception if something goes wrong
+     */
+    private QueueTaskFuture<FreeStyleBuild> scheduleOn(DumbSlave node) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        project.setAssignedNode(node);
+        return project.scheduleBuild2(0);
+    }
+}
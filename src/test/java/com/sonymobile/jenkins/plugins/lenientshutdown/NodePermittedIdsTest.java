@@ -0,0 +1,81 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link NodePermittedIds}.
+ */
+class NodePermittedIdsTest {
+
+    private static final long ADDED_ID = 7;
+    private static final long FIRST_ID = 1;
+    private static final long SECOND_ID = 2;
+    private static final long UNKNOWN_ID = 3;
+
+    /**
+     * Tests that ids added before an analysis result is stored are kept.
+     */
+    @Test
+    void testReplaceKeepsAddedIds() {
+        NodePermittedIds ids = new NodePermittedIds();
+        assertTrue(ids.add(ADDED_ID));
+        ids.replace(Arrays.asList(FIRST_ID, SECOND_ID, ADDED_ID));
+
+        assertTrue(ids.contains(ADDED_ID));
+        assertTrue(ids.contains(FIRST_ID));
+        assertTrue(ids.containsAny(new long[] {UNKNOWN_ID, SECOND_ID}));
+        assertFalse(ids.containsAny(new long[] {UNKNOWN_ID}));
+        assertFalse(ids.add(ADDED_ID));
+        assertFalse(ids.add(FIRST_ID));
+        assertEquals(3, ids.size());
+    }
+
+    /**
+     * Tests that removing drops both analyzed and added ids.
+     */
+    @Test
+    void testRemoveAll() {
+        NodePermittedIds ids = new NodePermittedIds();
+        ids.replace(Arrays.asList(FIRST_ID, SECOND_ID));
+        ids.add(ADDED_ID);
+
+        ids.removeAll(Arrays.asList(FIRST_ID, ADDED_ID));
+        assertFalse(ids.contains(FIRST_ID));
+        assertFalse(ids.contains(ADDED_ID));
+        assertTrue(ids.contains(SECOND_ID));
+        assertEquals(1, ids.size());
+
+        ids.replace(Collections.<Long>emptyList());
+        assertEquals(0, ids.size());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Shows how a drain analysis split by {@link ParallelAnalysis} scales with the parallelism.
+ * Each synthetic item is checked against every node shutting down, with a fixed amount of
+ * work per check standing in for finding the nodes able to build the item.
+ */
+@JmhBenchmark
+public class ParallelAnalysisBenchmark {
+
+    /**
+     * The analysis, the items and the nodes.
+     */
+    @State(Scope.Benchmark)
+    public static class Analysis {
+
+        // CS IGNORE VisibilityModifier FOR NEXT 11 LINES. REASON: JMH parameters must be public
+        /**
+         * Number of worker threads.
+         */
+        @Param({"1", "2", "4", "8" })
+        public int parallelism;
+
+        /**
+         * Number of queued items.
+         */
+        @Param({"10000", "50000" })
+        public int itemCount;
+
+        private static final int NODE_COUNT = 100;
+
+        /**
+         * Roughly one in this many checks finds an item bound to the node.
+         */
+        private static final int BOUND_RATIO = 97;
+
+        private static final int WORK_ROUNDS = 16;
+
+        private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+        private ParallelAnalysis parallelAnalysis;
+        private List<Long> items;
+        private List<String> nodeNames;
+        private ParallelAnalysis.Collector<Long> collector;
+
+        /**
+         * Creates the analysis and the synthetic items and nodes.
+         */
+        @Setup
+        public void setup() {
+            parallelAnalysis = new ParallelAnalysis(parallelism);
+            items = new ArrayList<Long>();
+            for (long id = 1; id <= itemCount; id++) {
+                items.add(id);
+            }
+            nodeNames = new ArrayList<String>();
+            for (int i = 0; i < NODE_COUNT; i++) {
+                nodeNames.add("node" + i);
+            }
+            collector = new ParallelAnalysis.Collector<Long>() {
+                @Override
+                public void collect(List<Long> chunk, int from, int to, Map<String, Set<Long>> permitted) {
+                    for (int i = from; i < to; i++) {
+                        long id = chunk.get(i);
+                        for (int node = 0; node < nodeNames.size(); node++) {
+                            if (isBound(id, node)) {
+                                String nodeName = nodeNames.get(node);
+                                Set<Long> ids = permitted.get(nodeName);
+                                if (ids == null) {
+                                    ids = new HashSet<Long>();
+                                    permitted.put(nodeName, ids);
+                                }
+                                ids.add(id);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * Stops the worker threads.
+         */
+        @TearDown
+        public void tearDown() {
+            parallelAnalysis.shutdown();
+        }
+
+        /**
+         * Decides if an item is bound to a node, spending some work like a real check would.
+         * @param id the item id
+         * @param node the node index
+         * @return true if the item can only be built on the node
+         */
+        private static boolean isBound(long id, int node) {
+            long hash = id * (node + 1);
+            for (int round = 0; round < WORK_ROUNDS; round++) {
+                hash = Long.rotateLeft(hash * GOLDEN_RATIO, round + 1) ^ id;
+            }
+            return Math.floorMod(hash, BOUND_RATIO) == 0;
+        }
+    }
+
+    /**
+     * Analyzes all items for all nodes.
+     * @param analysis the state
+     * @return the permitted ids per node
+     */
+    @Benchmark
+    public Map<String, Set<Long>> analyze(Analysis analysis) {
+        return analysis.parallelAnalysis.collect(analysis.items, analysis.collector);
+    }
+}
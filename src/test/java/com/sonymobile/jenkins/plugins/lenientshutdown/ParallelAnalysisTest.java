@@ -0,0 +1,141 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ParallelAnalysis}.
+ */
+class ParallelAnalysisTest {
+
+    private static final int PARALLELISM = 4;
+    private static final int NODES = 3;
+    private static final int ITEMS = ParallelAnalysis.CHUNK_SIZE * 8 + 13;
+
+    /**
+     * Tests that a parallel analysis visits every item once and finds the same ids as a sequential one.
+     */
+    @Test
+    void testParallelMatchesSequential() {
+        List<Long> items = createItems();
+        AtomicIntegerArray visits = new AtomicIntegerArray(ITEMS);
+
+        Map<String, Set<Long>> sequential = new ParallelAnalysis(1).collect(items, new ModuloCollector(null));
+        ParallelAnalysis parallel = new ParallelAnalysis(PARALLELISM);
+        try {
+            Map<String, Set<Long>> permitted = parallel.collect(items, new ModuloCollector(visits));
+            assertEquals(sequential, permitted);
+            assertEquals(NODES, permitted.size());
+        } finally {
+            parallel.shutdown();
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals(1, visits.get(i), "Item " + i + " was not visited once");
+        }
+    }
+
+    /**
+     * Tests that an analysis still works after its pool has been shut down.
+     */
+    @Test
+    void testCollectAfterShutdown() {
+        List<Long> items = createItems();
+        ParallelAnalysis parallel = new ParallelAnalysis(PARALLELISM);
+        Map<String, Set<Long>> first = parallel.collect(items, new ModuloCollector(null));
+        parallel.shutdown();
+        try {
+            assertEquals(first, parallel.collect(items, new ModuloCollector(null)));
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    /**
+     * Tests that the shared instance is replaced after it has been shut down.
+     */
+    @Test
+    void testSharedInstance() {
+        ParallelAnalysis shared = ParallelAnalysis.getShared();
+        assertSame(shared, ParallelAnalysis.getShared());
+        ParallelAnalysis.shutdownShared();
+        assertNotSame(shared, ParallelAnalysis.getShared());
+        ParallelAnalysis.shutdownShared();
+    }
+
+    /**
+     * Creates the items to analyze.
+     * @return the ids from zero up to the number of items
+     */
+    private static List<Long> createItems() {
+        List<Long> items = new ArrayList<Long>(ITEMS);
+        for (long id = 0; id < ITEMS; id++) {
+            items.add(id);
+        }
+        return items;
+    }
+
+    /**
+     * Permits every id on the node given by the id modulo the number of nodes.
+     */
+    private static final class ModuloCollector implements ParallelAnalysis.Collector<Long> {
+        private final AtomicIntegerArray visits;
+
+        /**
+         * Creates a collector.
+         * @param visits counts the visits per item, or null
+         */
+        private ModuloCollector(AtomicIntegerArray visits) {
+            this.visits = visits;
+        }
+
+        @Override
+        public void collect(List<Long> items, int from, int to, Map<String, Set<Long>> permitted) {
+            for (int i = from; i < to; i++) {
+                long id = items.get(i);
+                if (visits != null) {
+                    visits.incrementAndGet(i);
+                }
+                String nodeName = "node" + (id % NODES);
+                Set<Long> ids = permitted.get(nodeName);
+                if (ids == null) {
+                    ids = new HashSet<Long>();
+                    permitted.put(nodeName, ids);
+                }
+                ids.add(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link QueueIdSet}.
+ */
+class QueueIdSetTest {
+
+    private static final int OPERATIONS = 20000;
+    private static final int ID_RANGE = 5000;
+    private static final long SEED = 42;
+
+    /**
+     * Tests basic add, contains and remove, including the ids 0 and -1.
+     */
+    @Test
+    void testAddContainsRemove() {
+        QueueIdSet set = new QueueIdSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(0));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(1));
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(Long.MAX_VALUE));
+    }
+
+    /**
+     * Tests that the table shrinks back as ids are removed or cleared.
+     */
+    @Test
+    void testShrinksWhenEmptied() {
+        QueueIdSet set = new QueueIdSet();
+        int initial = set.capacity();
+        for (long id = 1; id <= ID_RANGE; id++) {
+            set.add(id);
+        }
+        int peak = set.capacity();
+        assertTrue(peak > initial);
+        for (long id = 1; id <= ID_RANGE; id++) {
+            assertTrue(set.remove(id));
+        }
+        assertEquals(initial, set.capacity());
+        set.addAll(Arrays.asList(1L, 2L));
+        for (long id = 1; id <= ID_RANGE; id++) {
+            set.add(id);
+        }
+        set.clear();
+        assertEquals(initial, set.capacity());
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(1));
+        assertTrue(set.contains(1));
+    }
+
+    /**
+     * Tests the contains any check.
+     */
+    @Test
+    void testContainsAny() {
+        QueueIdSet set = new QueueIdSet();
+        assertFalse(set.containsAny(Arrays.asList(1L, 2L)));
+        set.addAll(Arrays.asList(5L, 6L, 7L));
+        assertTrue(set.containsAny(Arrays.asList(1L, 7L)));
+        assertFalse(set.containsAny(Arrays.asList(1L, 8L)));
+        assertFalse(set.containsAny(Collections.<Long>emptySet()));
+    }
+
+    /**
+     * Compares random operations, exercising resizing and removal, with a HashSet.
+     */
+    @Test
+    void testRandomOperationsMatchHashSet() {
+        Random random = new Random(SEED);
+        QueueIdSet set = new QueueIdSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            long id = random.nextInt(ID_RANGE);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(id), set.add(id));
+            } else {
+                assertEquals(expected.remove(id), set.remove(id));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long id = 0; id < ID_RANGE; id++) {
+            assertEquals(expected.contains(id), set.contains(id), "Mismatch for id " + id);
+        }
+        Set<Long> copied = new HashSet<Long>();
+        for (long id : set.toArray()) {
+            copied.add(id);
+        }
+        assertEquals(expected, copied);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.matrixauth.AuthorizationType;
+import org.jenkinsci.plugins.matrixauth.PermissionEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.User;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import jenkins.model.Jenkins;
+
+/**
+ * Tests for {@link QueueTracker}.
+ */
+@WithJenkins
+class QueueTrackerTest {
+
+    private static final int QUIET_PERIOD = 600;
+    private static final int JOB_SLEEP_TIME = 5000;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private JenkinsRule j;
+
+    /**
+     * Sets up a user that can read Jenkins but no jobs.
+     * @param rule the jenkins rule
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) {
+        j = rule;
+        GlobalMatrixAuthorizationStrategy authStrategy = new GlobalMatrixAuthorizationStrategy();
+        authStrategy.add(Jenkins.ADMINISTER, new PermissionEntry(AuthorizationType.EITHER, "alice"));
+        authStrategy.add(Jenkins.READ, new PermissionEntry(AuthorizationType.EITHER, "bob"));
+        j.jenkins.setAuthorizationStrategy(authStrategy);
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+    }
+
+    /**
+     * Tests that seeding tracks all queued items, also when the first caller cannot read them.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testSeedsAllItemsRegardlessOfCaller() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = j.jenkins.getQueue().getItem(project);
+        QueueTracker.reset();
+
+        Set<Long> trackedIds;
+        try (ACLContext ignored = ACL.as2(User.getById("bob", true).impersonate2())) {
+            assertFalse(j.jenkins.getQueue().getItems().length > 0, "Bob should not see the item");
+            trackedIds = trackedIds();
+        }
+        assertTrue(trackedIds.contains(item.getId()));
+    }
+
+    /**
+     * Tests that items are tracked from entering until leaving the queue.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testTracksItemsUntilTheyLeave() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        //Seed while the queue is empty, the item is then only known through the listener
+        assertTrue(trackedIds().isEmpty());
+
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = j.jenkins.getQueue().getItem(project);
+        assertTrue(trackedIds().contains(item.getId()));
+
+        j.jenkins.getQueue().cancel(item);
+        assertFalse(trackedIds().contains(item.getId()));
+    }
+
+    /**
+     * Tests that an item without upstream builds is only permitted when all queued items are allowed,
+     * as read when the permitted ids are asked for.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testPermittedFollowsConfiguration() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = j.jenkins.getQueue().getItem(project);
+
+        assertFalse(QueueTracker.getPermittedQueueItemIds().contains(item.getId()));
+        ShutdownConfiguration.getInstance().setAllowAllQueuedItems(true);
+        assertTrue(QueueTracker.getPermittedQueueItemIds().contains(item.getId()));
+    }
+
+    /**
+     * Tests that an item waiting for a running upstream build is permitted once that build
+     * completes, through the completion event.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testPermittedWhenUpstreamCompletes() throws Exception {
+        FreeStyleProject upstream = j.createFreeStyleProject();
+        upstream.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        FreeStyleProject downstream = j.createFreeStyleProject();
+        QueueTaskFuture<FreeStyleBuild> future = upstream.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+        downstream.scheduleBuild2(QUIET_PERIOD, new Cause.UpstreamCause(build));
+        Queue.Item item = j.jenkins.getQueue().getItem(downstream);
+
+        assertFalse(QueueTracker.getPermittedQueueItemIds().contains(item.getId()));
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(QueueTracker.getPermittedQueueItemIds().contains(item.getId()));
+
+        j.jenkins.getQueue().cancel(item);
+        assertFalse(QueueTracker.getPermittedQueueItemIds().contains(item.getId()));
+    }
+
+    /**
+     * Gets the ids of the tracked items.
+     * @return the ids
+     */
+    private static Set<Long> trackedIds() {
+        Set<Long> ids = new HashSet<Long>();
+        for (QueueTracker.TrackedItem tracked : QueueTracker.getItems()) {
+            ids.add(tracked.getId());
+        }
+        return ids;
+    }
+}
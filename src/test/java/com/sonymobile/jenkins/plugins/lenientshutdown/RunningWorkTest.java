@@ -0,0 +1,117 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static com.sonymobile.jenkins.plugins.lenientshutdown.LenientShutdownAssert.MAX_DURATION;
+import static com.sonymobile.jenkins.plugins.lenientshutdown.LenientShutdownAssert.waitFor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.DumbSlave;
+
+/**
+ * Tests for {@link RunningWork}.
+ */
+@WithJenkins
+class RunningWorkTest {
+
+    private static final int JOB_SLEEP_TIME = 5000;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private JenkinsRule j;
+    private DumbSlave slave;
+
+    /**
+     * Creates a node to build on.
+     * @param rule the jenkins rule
+     * @throws Exception if something goes wrong
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) throws Exception {
+        j = rule;
+        j.jenkins.setQuietPeriod(0);
+        slave = j.createOnlineSlave();
+    }
+
+    /**
+     * Tests that a build is tracked from start until it is finalized.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testTracksBuildUntilFinalized() throws Exception {
+        QueueTaskFuture<FreeStyleBuild> future = scheduleOnSlave();
+        FreeStyleBuild build = future.waitForStart();
+        String nodeName = slave.getNodeName();
+
+        assertTrue(RunningWork.isBuilding(slave.toComputer()));
+        assertEquals(1, RunningWork.getBusyExecutorCount(nodeName));
+        assertTrue(RunningWork.getRunningQueueIds(nodeName).contains(build.getQueueId()));
+        assertTrue(RunningWork.getRunningQueueIds().contains(build.getQueueId()));
+        assertFalse(RunningWork.getRunningQueueIds("").contains(build.getQueueId()));
+
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(waitFor(MAX_DURATION, () -> !RunningWork.isBuilding(slave.toComputer())));
+        assertEquals(0, RunningWork.getBusyExecutorCount(nodeName));
+        assertFalse(RunningWork.getRunningQueueIds().contains(build.getQueueId()));
+    }
+
+    /**
+     * Tests that builds already running when the registry is reset are found by seeding.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testSeedsRunningBuilds() throws Exception {
+        QueueTaskFuture<FreeStyleBuild> future = scheduleOnSlave();
+        FreeStyleBuild build = future.waitForStart();
+
+        RunningWork.reset();
+        assertTrue(RunningWork.isBuilding(slave.toComputer()));
+        assertTrue(RunningWork.getRunningQueueIds(slave.getNodeName()).contains(build.getQueueId()));
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Schedules a build on the node.
+     * @return the build future
+     * @throws Exception if something goes wrong
+     */
+    private QueueTaskFuture<FreeStyleBuild> scheduleOnSlave() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        project.setAssignedNode(slave);
+        return project.scheduleBuild2(0);
+    }
+}
@@ -23,12 +23,14 @@
  */
 package com.sonymobile.jenkins.plugins.lenientshutdown;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.net.HttpURLConnection;
 import java.util.concurrent.TimeUnit;
 
 import hudson.model.Computer;
@@ -37,6 +39,7 @@ import hudson.security.ACL;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
 import hudson.slaves.DumbSlave;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.htmlunit.FailingHttpStatusCodeException;
 import org.htmlunit.html.HtmlElement;
 import org.htmlunit.html.HtmlPage;
@@ -312,6 +315,20 @@ class ShutdownSlaveActionPermissionTest {
         assertFalse(PluginImpl.getInstance().isNodeShuttingDown(slave.getNodeName()), "Unaffected");
     }
 
+    /**
+     * Tests that the remote API of the node needs the system read permission.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testApiNeedsSystemRead() throws Exception {
+        setupSecurity();
+        String url = slave.toComputer().getUrl() + ShutdownSlaveAction.URL + "/api/json";
+        j.createWebClient().login("bobby").assertFails(url, HttpURLConnection.HTTP_FORBIDDEN);
+
+        JSONObject api = j.createWebClient().login("admin").getJSON(url).getJSONObject();
+        assertEquals(slave.getNodeName(), api.getString("nodeName"));
+    }
+
     /**
      * Sets up Jenkins security
      */
@@ -323,6 +340,7 @@ class ShutdownSlaveActionPermissionTest {
         strategy.add(Computer.DISCONNECT, new PermissionEntry(AuthorizationType.EITHER, "alice"));
         strategy.add(Jenkins.READ, new PermissionEntry(AuthorizationType.EITHER, "bobby"));
         strategy.add(Jenkins.READ, new PermissionEntry(AuthorizationType.EITHER, "alice"));
+        strategy.add(Jenkins.ADMINISTER, new PermissionEntry(AuthorizationType.EITHER, "admin"));
         j.jenkins.setAuthorizationStrategy(strategy);
     }
 
@@ -0,0 +1,114 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import hudson.model.ManagementLink;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the singleton lookups done on every dispatcher call, page render and run completion
+ * with the extension and plugin lookups they replaced.
+ */
+@JmhBenchmark
+public class SingletonLookupBenchmark {
+
+    /**
+     * A plain Jenkins instance with the plugin loaded.
+     */
+    @State(Scope.Benchmark)
+    public static class Lookups extends JmhBenchmarkState {
+    }
+
+    /**
+     * The previous {@link ShutdownManageLink#getInstance()}, scanning the management links.
+     * @param lookups the state
+     * @return the link
+     */
+    @Benchmark
+    public ShutdownManageLink manageLinkScan(Lookups lookups) {
+        for (ManagementLink link : Jenkins.get().getManagementLinks()) {
+            if (link instanceof ShutdownManageLink) {
+                return (ShutdownManageLink)link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The resolved management link.
+     * @param lookups the state
+     * @return the link
+     */
+    @Benchmark
+    public ShutdownManageLink manageLinkInstance(Lookups lookups) {
+        return ShutdownManageLink.getInstance();
+    }
+
+    /**
+     * The previous {@link ShutdownConfiguration#getInstance()}, looking up the extension.
+     * @param lookups the state
+     * @return the configuration
+     */
+    @Benchmark
+    public ShutdownConfiguration configurationLookup(Lookups lookups) {
+        return GlobalConfiguration.all().get(ShutdownConfiguration.class);
+    }
+
+    /**
+     * The resolved configuration.
+     * @param lookups the state
+     * @return the configuration
+     */
+    @Benchmark
+    public ShutdownConfiguration configurationInstance(Lookups lookups) {
+        return ShutdownConfiguration.getInstance();
+    }
+
+    /**
+     * The previous {@link PluginImpl#getInstance()}, looking up the plugin.
+     * @param lookups the state
+     * @return the plugin
+     */
+    @Benchmark
+    public PluginImpl pluginLookup(Lookups lookups) {
+        return Jenkins.get().getPlugin(PluginImpl.class);
+    }
+
+    /**
+     * The started plugin instance.
+     * @param lookups the state
+     * @return the plugin
+     */
+    @Benchmark
+    public PluginImpl pluginInstance(Lookups lookups) {
+        return PluginImpl.getInstance();
+    }
+}
@@ -228,6 +228,33 @@ class SlaveLenientOfflineTest {
         assertSlaveGoesOffline(slave1);
     }
 
+    /**
+     * Tests that a buildable item that only one node can build makes that node, and only
+     * that node, needed while the node is not shutting down yet.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testBuildableItemTiedToSingleNode() throws Exception {
+        FreeStyleProject running = j.createFreeStyleProject("running");
+        running.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        running.setAssignedNode(slave0);
+        FreeStyleProject tied = j.createFreeStyleProject("tied");
+        tied.setAssignedNode(slave0);
+
+        QueueTaskFuture<FreeStyleBuild> runningBuild = running.scheduleBuild2(0);
+        runningBuild.waitForStart();
+        QueueTaskFuture<FreeStyleBuild> tiedBuild = tied.scheduleBuild2(0);
+        assertTrue(waitFor(MAX_DURATION, () -> j.jenkins.getQueue().getItem(tied) instanceof Queue.BuildableItem),
+                "Item did not become buildable");
+
+        assertTrue(QueueUtils.hasNodeExclusiveItemInQueue(slave0.toComputer()));
+        assertFalse(QueueUtils.hasNodeExclusiveItemInQueue(slave1.toComputer()));
+
+        runningBuild.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        tiedBuild.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(QueueUtils.hasNodeExclusiveItemInQueue(slave0.toComputer()));
+    }
+
     /**
      * Tests that lenient shutdown mode can be activated and deactivated during a build.
      * @throws Exception if something goes wrong
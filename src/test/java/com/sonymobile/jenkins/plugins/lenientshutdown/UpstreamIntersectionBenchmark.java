@@ -0,0 +1,128 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.commons.collections.CollectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the old {@link CollectionUtils#intersection} based upstream check
+ * with {@link QueueIdSet#containsAny(long[])}.
+ * An item typically has one to a handful of upstream causes, checked against
+ * a permitted set of a few thousand queue ids.
+ */
+@JmhBenchmark
+public class UpstreamIntersectionBenchmark {
+
+    /**
+     * The permitted ids and the upstream ids of the item being checked.
+     */
+    @State(Scope.Benchmark)
+    public static class Ids {
+
+        // CS IGNORE VisibilityModifier FOR NEXT 11 LINES. REASON: JMH parameters must be public
+        /**
+         * Number of upstream causes of the checked item.
+         */
+        @Param({"1", "4", "16" })
+        public int upstreamCount;
+
+        /**
+         * Whether the last upstream id is permitted.
+         */
+        @Param({"true", "false" })
+        public boolean match;
+
+        private static final int PERMITTED_COUNT = 5000;
+
+        private Set<Long> permittedSet;
+        private QueueIdSet permittedIdSet;
+        private Set<Long> upstreamSet;
+        private long[] upstreamArray;
+
+        /**
+         * Fills the permitted ids with the even ids and the upstream ids
+         * with odd ids, optionally ending with a permitted one.
+         */
+        @Setup
+        public void setup() {
+            permittedSet = Collections.synchronizedSet(new HashSet<Long>());
+            permittedIdSet = new QueueIdSet();
+            for (long id = 0; id < PERMITTED_COUNT; id++) {
+                permittedSet.add(id * 2);
+            }
+            permittedIdSet.addAll(permittedSet);
+            upstreamSet = new HashSet<Long>();
+            upstreamArray = new long[upstreamCount];
+            for (int i = 0; i < upstreamCount; i++) {
+                long id = i * 2 + 1;
+                if (match && i == upstreamCount - 1) {
+                    id = i * 2;
+                }
+                upstreamSet.add(id);
+                upstreamArray[i] = id;
+            }
+        }
+    }
+
+    /**
+     * The previous implementation.
+     * @param ids the state
+     * @return true if any upstream id is permitted
+     */
+    @Benchmark
+    public boolean collectionUtilsIntersection(Ids ids) {
+        return !CollectionUtils.intersection(ids.upstreamSet, ids.permittedSet).isEmpty();
+    }
+
+    /**
+     * The primitive set with a boxed argument set.
+     * @param ids the state
+     * @return true if any upstream id is permitted
+     */
+    @Benchmark
+    public boolean queueIdSetContainsAnyIterable(Ids ids) {
+        return ids.permittedIdSet.containsAny(ids.upstreamSet);
+    }
+
+    /**
+     * The primitive set with a primitive argument array, as used by the dispatcher.
+     * @param ids the state
+     * @return true if any upstream id is permitted
+     */
+    @Benchmark
+    public boolean queueIdSetContainsAnyArray(Ids ids) {
+        return ids.permittedIdSet.containsAny(ids.upstreamArray);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2014 Sony Mobile Communications Inc. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.lenientshutdown;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+
+/**
+ * Tests for {@link UpstreamRunIndex}.
+ */
+@WithJenkins
+class UpstreamRunIndexTest {
+
+    private static final int JOB_SLEEP_TIME = 5000;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private JenkinsRule j;
+
+    /**
+     * Starts every test with an empty index.
+     * @param rule the jenkins rule
+     */
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) {
+        j = rule;
+        j.jenkins.setQuietPeriod(0);
+        UpstreamRunIndex.reset();
+    }
+
+    /**
+     * Tests that a running upstream build is indexed as building and as completed once done.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testLookupFollowsCompletion() throws Exception {
+        FreeStyleProject upstream = j.createFreeStyleProject();
+        upstream.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> future = upstream.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+        Cause.UpstreamCause cause = new Cause.UpstreamCause(build);
+
+        UpstreamRunIndex.Entry entry = UpstreamRunIndex.lookup(cause);
+        assertNotNull(entry);
+        assertTrue(entry.isBuilding());
+        assertEquals(build.getQueueId(), entry.getQueueId());
+
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(UpstreamRunIndex.lookup(cause).isBuilding());
+    }
+
+    /**
+     * Tests that a recorded completion is not replaced by a lookup that still sees the build running,
+     * which is what happens when the build completes between resolving and indexing it.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testCompletionWinsOverLaterLookup() throws Exception {
+        FreeStyleProject upstream = j.createFreeStyleProject();
+        upstream.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> future = upstream.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+
+        //Nothing is draining, the completion must still be recorded
+        assertTrue(DrainActivity.isIdle());
+        UpstreamRunIndex.completed(build);
+        assertTrue(build.isBuilding());
+        assertFalse(UpstreamRunIndex.lookup(new Cause.UpstreamCause(build)).isBuilding());
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that the builds of a job renamed while building are found by causes recorded before,
+     * and that their completion is not hidden by a stale entry under the old name.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testRenamedWhileBuilding() throws Exception {
+        FreeStyleProject upstream = j.createFreeStyleProject("before");
+        upstream.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> future = upstream.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+        Cause.UpstreamCause cause = new Cause.UpstreamCause(build);
+        assertTrue(UpstreamRunIndex.lookup(cause).isBuilding());
+
+        upstream.renameTo("after");
+        assertEquals("after#" + build.getNumber(), QueueUtils.getUpstreamBuildId(cause));
+        assertTrue(UpstreamRunIndex.lookup(cause).isBuilding());
+
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(UpstreamRunIndex.lookup(cause).isBuilding());
+        assertEquals(1, UpstreamRunIndex.size());
+    }
+
+    /**
+     * Tests that an upstream build that does not exist is indexed once as missing.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testMissingUpstream() throws Exception {
+        FreeStyleProject upstream = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(upstream);
+        Cause.UpstreamCause cause = new Cause.UpstreamCause(build);
+        build.delete();
+        UpstreamRunIndex.reset();
+
+        assertNull(UpstreamRunIndex.lookup(cause));
+        assertEquals(1, UpstreamRunIndex.size());
+        assertNull(UpstreamRunIndex.lookup(cause));
+        assertEquals(1, UpstreamRunIndex.size());
+    }
+}
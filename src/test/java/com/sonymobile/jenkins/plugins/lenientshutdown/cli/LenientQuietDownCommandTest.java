@@ -23,12 +23,19 @@
  */
 package com.sonymobile.jenkins.plugins.lenientshutdown.cli;
 
+import java.util.concurrent.TimeUnit;
+
 import org.junit.jupiter.api.Test;
 
+import com.sonymobile.jenkins.plugins.lenientshutdown.ShutdownConfiguration;
 import com.sonymobile.jenkins.plugins.lenientshutdown.ShutdownDecorator;
 import com.sonymobile.jenkins.plugins.lenientshutdown.ShutdownManageLink;
 
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -38,6 +45,9 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
  */
 class LenientQuietDownCommandTest extends BaseCliTest {
 
+    private static final int DEADLINE_MINUTES = 30;
+    private static final int QUIET_PERIOD = 600;
+
     /**
      * Runs the command with a message (-m)
      * @throws Exception if something goes wrong
@@ -60,4 +70,69 @@ class LenientQuietDownCommandTest extends BaseCliTest {
                 "Command did not exit correctly");
         assertTrue(ShutdownManageLink.getInstance().isGoingToShutdown(), "Shutdown flag not set to true");
     }
+
+    /**
+     * Runs the command allowing all queued items (-a) and checks that an item queued before
+     * is permitted, so the option was applied before the queue was analyzed.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testRunAllowsQueuedItems() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = j.jenkins.getQueue().getItem(project);
+        assertEquals(0, new ProcessBuilder(cmd("lenient-quiet-down", "-a")).start().waitFor(),
+                "Command did not exit correctly");
+        assertTrue(ShutdownManageLink.getInstance().isPermittedQueueId(item.getId()), "Queued item not permitted");
+    }
+
+    /**
+     * Runs the command with a drain deadline (-d)
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testRunWithDeadline() throws Exception {
+        long before = System.currentTimeMillis();
+        String minutes = String.valueOf(DEADLINE_MINUTES);
+        assertEquals(0, new ProcessBuilder(cmd("lenient-quiet-down", "-d", minutes)).start().waitFor(),
+                "Command did not exit correctly");
+        assertEquals(DEADLINE_MINUTES, ShutdownConfiguration.getInstance().getDrainDeadlineMinutes(),
+                "Deadline not set");
+        long earliest = before + TimeUnit.MINUTES.toMillis(DEADLINE_MINUTES);
+        assertTrue(ShutdownManageLink.getInstance().getDrainDeadline() >= earliest,
+                "Deadline not counted from activation");
+    }
+
+    /**
+     * Runs the command without a drain deadline and checks that the configured one is kept.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testRunWithoutDeadlineKeepsConfigured() throws Exception {
+        ShutdownConfiguration.getInstance().setDrainDeadlineMinutes(DEADLINE_MINUTES);
+        assertEquals(0, new ProcessBuilder(cmd("lenient-quiet-down")).start().waitFor(),
+                "Command did not exit correctly");
+        assertEquals(DEADLINE_MINUTES, ShutdownConfiguration.getInstance().getDrainDeadlineMinutes(),
+                "Configured deadline removed");
+    }
+
+    /**
+     * Runs the command with white listed projects (-w -p) and checks that they are
+     * published as a new snapshot, leaving the one read before untouched.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    void testRunPublishesNewSnapshot() throws Exception {
+        ShutdownConfiguration configuration = ShutdownConfiguration.getInstance();
+        configuration.getWhiteListedProjects().add("old");
+        ShutdownConfiguration.Snapshot before = configuration.getSnapshot();
+        assertEquals(0, new ProcessBuilder(cmd("lenient-quiet-down", "-w", "-p", "first;second")).start().waitFor(),
+                "Command did not exit correctly");
+        ShutdownConfiguration.Snapshot after = configuration.getSnapshot();
+        assertTrue(before.getWhiteListedProjects().contains("old"), "Earlier snapshot changed");
+        assertFalse(before.isAllowWhiteListedProjects(), "Earlier snapshot changed");
+        assertTrue(after.isWhiteListedProject("first") && after.isWhiteListedProject("second"),
+                "White listed projects not published");
+        assertFalse(after.getWhiteListedProjects().contains("old"), "White listed projects not replaced");
+    }
 }